@@ -0,0 +1,118 @@
+package com.yiba.core.collect;
+
+/**
+ * geohash格子的成员计数
+ * 第s层有4^s个格子，元素加入、移除、分值改变时，它所在的各层格子计数随之增减。
+ * georadius用它估算每种格子大小下要遍历的候选个数，密集处用更细更多的格子，稀疏处用更粗更少的格子，
+ * 见{@link ZSets#geohashRangesByDensity(double, double, double, GeoDensity)}。
+ * 比最细一层更细的格子按面积均摊估算。非线程安全，与ZSet在同一线程使用。
+ * @author U-Demon
+ */
+public class GeoDensity {
+	
+	/** 最多10层，最细一层约一百万个格子 */
+	private static final int LEVEL_MAX = 10;
+	
+	/** geo分值是52位的geohash，不在[0, 2^52)内的分值不属于任何格子 */
+	private static final long SCORE_LIMIT = 1L << 52;
+	
+	/** 层数 */
+	private final int levels;
+	
+	/** counts[s]为第s层格子的成员数，s从1开始 */
+	private final int[][] counts;
+	
+	/* 统计 */
+	private long queries;
+	private long scans;
+	private long candidates;
+	private long rejected;
+	
+	/**
+	 * @param levels	计数的层数，占用4^levels*4/3个int
+	 */
+	public GeoDensity(int levels) {
+		if (levels < 1 || levels > LEVEL_MAX) {
+			throw new IllegalArgumentException("levels must be in [1, " + LEVEL_MAX + "]: " + levels);
+		}
+		this.levels = levels;
+		this.counts = new int[levels + 1][];
+		for (int s = 1; s <= levels; ++s) {
+			counts[s] = new int[1 << (s * 2)];
+		}
+	}
+	
+	/**
+	 * 分值加入n个成员，n为负数表示移除
+	 * 不是geo分值的忽略，georadius的分值区间不会包含它们。
+	 * @param score
+	 * @param n
+	 */
+	public void add(long score, int n) {
+		if (score < 0 || score >= SCORE_LIMIT) {
+			return;
+		}
+		for (int s = 1; s <= levels; ++s) {
+			counts[s][(int) (score >>> (52 - s * 2))] += n;
+		}
+	}
+	
+	/**
+	 * 估算一个geohash格子中的成员数
+	 * @param geohash
+	 * @param step
+	 * @return
+	 */
+	public double estimate(long geohash, int step) {
+		if (step <= levels) {
+			return counts[step][(int) geohash];
+		}
+		int d = step - levels;
+		return counts[levels][(int) (geohash >>> (d * 2))] / (double) (1L << (d * 2));
+	}
+	
+	/**
+	 * 记录一次查找
+	 * @param scans			rangeByScore的次数
+	 * @param candidates	遍历到的成员数
+	 * @param rejected		不在半径内被过滤掉的成员数
+	 */
+	void record(int scans, int candidates, int rejected) {
+		this.queries++;
+		this.scans += scans;
+		this.candidates += candidates;
+		this.rejected += rejected;
+	}
+	
+	public long getQueries() {
+		return queries;
+	}
+	
+	public long getScans() {
+		return scans;
+	}
+	
+	public long getCandidates() {
+		return candidates;
+	}
+	
+	public long getRejected() {
+		return rejected;
+	}
+	
+	/**
+	 * 候选中被过滤掉的比例
+	 * @return
+	 */
+	public double rejectRate() {
+		return candidates == 0 ? 0 : (double) rejected / candidates;
+	}
+	
+	public void resetStats() {
+		queries = 0;
+		scans = 0;
+		candidates = 0;
+		rejected = 0;
+	}
+
+}
@@ -0,0 +1,177 @@
+package com.yiba.core.collect;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * georadius的区域查询缓存
+ * 缓存每个(geohash, step)区域的membersOfGeoHashBox结果，并用区域的版本号校验。
+ * 版本号按geohash分层维护：第s层有4^s个格子，元素加入、移除、分值改变时，它所在的各层格子版本号都加1。
+ * 区域step不超过层数时，直接比较同一层格子的版本号；更细的区域使用最细一层的格子，失效范围偏大但结果正确。
+ * 区域score区间的上界是下一个区域的起点，所以上界所在的格子也要校验。
+ * 按LRU淘汰，容量固定。非线程安全，与ZSet在同一线程使用。
+ * @author U-Demon
+ */
+public class GeoQueryCache<E> {
+	
+	/** 最多10层，最细一层约一百万个格子 */
+	private static final int LEVEL_MAX = 10;
+	
+	/** 层数 */
+	private final int levels;
+	
+	/** versions[s]为第s层格子的版本号，s从1开始 */
+	private final int[][] versions;
+	
+	private final LinkedHashMap<Long, Box<E>> entries;
+	
+	/* 统计 */
+	private long hits;
+	private long misses;
+	private long invalidations;
+	private long evictions;
+	
+	/**
+	 * @param maxEntries	最多缓存的区域个数
+	 * @param levels		版本号的层数，越大失效越精确，占用4^levels*4/3个int
+	 */
+	public GeoQueryCache(int maxEntries, int levels) {
+		if (levels < 1 || levels > LEVEL_MAX) {
+			throw new IllegalArgumentException("levels must be in [1, " + LEVEL_MAX + "]: " + levels);
+		}
+		this.levels = levels;
+		this.versions = new int[levels + 1][];
+		for (int s = 1; s <= levels; ++s) {
+			versions[s] = new int[1 << (s * 2)];
+		}
+		this.entries = new LinkedHashMap<Long, Box<E>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Box<E>> eldest) {
+				if (size() > maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * 分值所在的格子有修改，各层版本号加1
+	 * @param score
+	 */
+	public void touch(long score) {
+		for (int s = 1; s <= levels; ++s) {
+			versions[s][cellOf(score, s)]++;
+		}
+	}
+	
+	/**
+	 * 查找缓存的区域成员
+	 * @param geohash
+	 * @param step
+	 * @param scores	区域的score区间
+	 * @return 未命中或已失效返回null
+	 */
+	public List<E> get(long geohash, int step, long[] scores) {
+		Box<E> entry = entries.get(key(geohash, step));
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		if (entry.version != version(scores[0], step) || entry.maxVersion != version(scores[1], step)) {
+			entries.remove(key(geohash, step));
+			invalidations++;
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.members;
+	}
+	
+	/**
+	 * 缓存区域成员
+	 * @param geohash
+	 * @param step
+	 * @param scores	区域的score区间
+	 * @param members	由缓存持有，不复制，之后不能再修改；get返回的也是这个列表
+	 */
+	public void put(long geohash, int step, long[] scores, List<E> members) {
+		Box<E> entry = new Box<>(members, version(scores[0], step), version(scores[1], step));
+		entries.put(key(geohash, step), entry);
+	}
+	
+	/**
+	 * 清空缓存，版本号保留
+	 */
+	public void clear() {
+		entries.clear();
+	}
+	
+	private int version(long score, int step) {
+		int s = Math.min(step, levels);
+		return versions[s][cellOf(score, s)];
+	}
+	
+	private static int cellOf(long score, int s) {
+		return (int) ((score >>> (52 - s * 2)) & ((1L << (s * 2)) - 1));
+	}
+	
+	private static long key(long geohash, int step) {
+		return (geohash << 6) | step;
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	public long getHits() {
+		return hits;
+	}
+	
+	public long getMisses() {
+		return misses;
+	}
+	
+	public long getInvalidations() {
+		return invalidations;
+	}
+	
+	public long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * 命中率
+	 * @return
+	 */
+	public double hitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+	
+	public void resetStats() {
+		hits = 0;
+		misses = 0;
+		invalidations = 0;
+		evictions = 0;
+	}
+	
+	private static class Box<E> {
+		final List<E> members;
+		/** 区域下界所在格子的版本号 */
+		final int version;
+		/** 区域上界所在格子的版本号 */
+		final int maxVersion;
+		
+		Box(List<E> members, int version, int maxVersion) {
+			this.members = members;
+			this.version = version;
+			this.maxVersion = maxVersion;
+		}
+	}
+
+}
@@ -0,0 +1,794 @@
+package com.yiba.core.collect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 侵入式索引的ZSet
+ * 跳表的各层指针和哈希链都保存在{@link IntrusiveZSetEle}自身中，没有HashMap.Node、TreeMap.Entry、ArrayList这些包装对象。
+ * 对已持有的元素进行移除或更新分值时，直接从自身的指针断开，不需要通过key或score查找。
+ * 非线程安全
+ * <b>注意：K必须重写hashCode和equals方法；一个元素同一时间只能属于一个IntrusiveZSet。
+ * 相同分值的元素按加入的先后顺序排列。
+ * 不加入{@link ZSet#lookupKey(String)}的keyspace：ZSets的命令、RESP服务、复制和修改事件流都直接使用ZSet的dict和zsl，
+ * IntrusiveZSet由持有者直接使用，例如场景中只通过已持有的元素更新和移除的排行或索引。
+ * @author U-Demon
+ */
+public class IntrusiveZSet<E extends IntrusiveZSetEle<K>, K> {
+	
+	/** 跳表最大层数 */
+	static final int ZSKIPLIST_MAXLEVEL = 32;
+	
+	/** 哈希表初始大小，必须为2的幂 */
+	private static final int DICT_INITIAL_SIZE = 16;
+	
+	/** ZSet的key */
+	private String key;
+	
+	/** 跳表的头节点，不存放元素 */
+	private final IntrusiveZSetEle<K> header;
+	
+	/** 跳表的最后一个元素 */
+	private IntrusiveZSetEle<K> tail;
+	
+	/** 跳表当前的层数 */
+	private int level;
+	
+	/** 元素个数 */
+	private int length;
+	
+	/** 哈希表，通过元素的dictNext串成链表 */
+	private IntrusiveZSetEle<K>[] table;
+	
+	/** 插入时复用的查找路径，避免每次分配 */
+	private final IntrusiveZSetEle<K>[] update;
+	private final int[] rank;
+	
+	public IntrusiveZSet(String key) {
+		this.key = key;
+		this.header = new Header<>();
+		this.header.zslLevel = ZSKIPLIST_MAXLEVEL;
+		this.header.zslLinks = newArray((ZSKIPLIST_MAXLEVEL - 1) * 2);
+		this.header.zslSpan = new int[ZSKIPLIST_MAXLEVEL - 1];
+		this.level = 1;
+		this.table = newArray(DICT_INITIAL_SIZE);
+		this.update = newArray(ZSKIPLIST_MAXLEVEL);
+		this.rank = new int[ZSKIPLIST_MAXLEVEL];
+	}
+	
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * 元素个数
+	 * @return
+	 */
+	public int size() {
+		return length;
+	}
+	
+	/**
+	 * 通过key获取元素
+	 * @param id
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(K id) {
+		return (E) dictFind(id);
+	}
+	
+	/**
+	 * 添加元素
+	 * @param ele
+	 * @return
+	 */
+	public int add(E ele) {
+		return add(ele.getScore(), ele, false, false, false);
+	}
+	
+	/**
+	 * 添加元素，返回值与{@link ZSet#add(Long, ZSetEle, boolean, boolean, boolean)}一致
+	 * @param score
+	 * @param ele
+	 * @param nx
+	 * @param xx
+	 * @param incr
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public int add(Long score, E ele, boolean nx, boolean xx, boolean incr) {
+		E de = (E) dictFind(ele.getKey());
+		if (de != null) {
+			if (nx) {
+				/* NX? Return, same element already exists. */
+				return -2;
+			}
+			
+			/* Prepare the score for the increment if needed. */
+			if (incr) {
+				score += de.getScore();
+			}
+			
+			long oldScore = de.getScore();
+			/** 更新skiplist */
+			if (score != oldScore) {
+				de.setScore(score);
+				zslUpdateScore(de, oldScore);
+			}
+			return 1;
+		}
+		else if (!xx) {
+			if (ele.zslLevel != 0) {
+				throw new IllegalStateException("element already belongs to another IntrusiveZSet: " + ele.getKey());
+			}
+			ele.setScore(score);
+			dictAdd(ele);
+			zslInsert(ele, randomLevel());
+			return 1;
+		}
+		else {
+			return -3;
+		}
+	}
+	
+	/**
+	 * 更新已持有元素的分值，不做任何查找
+	 * @param ele
+	 * @param score
+	 */
+	public void updateScore(E ele, long score) {
+		long oldScore = ele.getScore();
+		if (score == oldScore) {
+			return;
+		}
+		ele.setScore(score);
+		zslUpdateScore(ele, oldScore);
+	}
+	
+	/**
+	 * 分值更新后调整元素在跳表中的位置
+	 * 如果新分值没有越过前后元素，原地修改即可，否则断开后按原层数重新插入
+	 * @param ele
+	 * @param oldScore
+	 */
+	private void zslUpdateScore(IntrusiveZSetEle<K> ele, long oldScore) {
+		IntrusiveZSetEle<K> prev = ele.zslPrev;
+		IntrusiveZSetEle<K> next = ele.zslNext;
+		long score = ele.getScore();
+		if ((prev == header || prev.score <= score) && (next == null || next.score > score)) {
+			return;
+		}
+		int lvl = ele.zslLevel;
+		zslUnlink(ele);
+		zslInsert(ele, lvl);
+	}
+	
+	/**
+	 * 通过score区间获取
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public List<E> rangeByScore(long min, long max) {
+		return rangeByScore(min, max, null);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<E> rangeByScore(long min, long max, List<E> list) {
+		if (list == null) {
+			list = new ArrayList<>();
+		}
+		
+		if (min > max) {
+			return list;
+		}
+		
+		IntrusiveZSetEle<K> x = zslFirstInRange(min);
+		while (x != null && x.score <= max) {
+			list.add((E) x);
+			x = x.zslNext;
+		}
+		return list;
+	}
+	
+	/**
+	 * 通过score区间分页获取，LIMIT offset count
+	 * 通过跨度直接定位到第offset个元素，复杂度O(log n + count)
+	 * @param min
+	 * @param max
+	 * @param offset
+	 * @param count		负数表示offset之后的全部
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<E> rangeByScore(long min, long max, int offset, int count) {
+		List<E> list = new ArrayList<>(count > 0 ? Math.min(count, length) : 10);
+		if (min > max || offset < 0 || count == 0) {
+			return list;
+		}
+		
+		IntrusiveZSetEle<K> x = zslFirstInRange(min);
+		if (x != null && offset > 0) {
+			x = zslGetElementByRank(zslRank(x) + 1 + offset);
+		}
+		while (x != null && x.score <= max) {
+			list.add((E) x);
+			if (list.size() == count) {
+				break;
+			}
+			x = x.zslNext;
+		}
+		return list;
+	}
+	
+	/**
+	 * 通过score区间倒序分页获取，LIMIT offset count
+	 * @param max
+	 * @param min
+	 * @param offset
+	 * @param count		负数表示offset之后的全部
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<E> revRangeByScore(long max, long min, int offset, int count) {
+		List<E> list = new ArrayList<>(count > 0 ? Math.min(count, length) : 10);
+		if (min > max || offset < 0 || count == 0) {
+			return list;
+		}
+		
+		IntrusiveZSetEle<K> x = zslLastInRange(max);
+		if (x != null && offset > 0) {
+			long rank = zslRank(x) - offset;
+			x = rank < 0 ? null : zslGetElementByRank(rank + 1);
+		}
+		while (x != null && x != header && x.score >= min) {
+			list.add((E) x);
+			if (list.size() == count) {
+				break;
+			}
+			x = x.zslPrev;
+		}
+		return list;
+	}
+	
+	/**
+	 * 元素的排名，从0开始，不在集合中返回-1
+	 * @param ele
+	 * @return
+	 */
+	public long rank(E ele) {
+		if (!dictContains(ele)) {
+			return -1;
+		}
+		return zslRank(ele);
+	}
+	
+	/**
+	 * 通过排名获取元素，排名从0开始
+	 * @param rank
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public E getByRank(long rank) {
+		if (rank < 0 || rank >= length) {
+			return null;
+		}
+		return (E) zslGetElementByRank(rank + 1);
+	}
+	
+	/**
+	 * 移除
+	 * @param id
+	 * @return
+	 */
+	public boolean remove(K id) {
+		IntrusiveZSetEle<K> ele = dictFind(id);
+		if (ele == null) {
+			return true;
+		}
+		dictUnlink(ele);
+		zslUnlink(ele);
+		clearLinks(ele);
+		return true;
+	}
+	
+	/**
+	 * 移除已持有的元素，直接从自身指针断开
+	 * @param ele
+	 * @return 元素不属于该集合时返回false
+	 */
+	public boolean remove(E ele) {
+		if (!dictUnlink(ele)) {
+			return false;
+		}
+		zslUnlink(ele);
+		clearLinks(ele);
+		return true;
+	}
+	
+	/**
+	 * 移除score区间内的所有元素，ZREMRANGEBYSCORE
+	 * 只查找一次区间起点的前驱路径，之后逐个从路径上摘除
+	 * @param min
+	 * @param max
+	 * @return 移除的个数
+	 */
+	public int removeRangeByScore(long min, long max) {
+		if (min > max) {
+			return 0;
+		}
+		
+		IntrusiveZSetEle<K> x = header;
+		for (int i = level - 1; i >= 0; i--) {
+			IntrusiveZSetEle<K> n;
+			while ((n = next(x, i)) != null && n.score < min) {
+				x = n;
+			}
+			update[i] = x;
+		}
+		
+		int removed = 0;
+		x = x.zslNext;
+		while (x != null && x.score <= max) {
+			IntrusiveZSetEle<K> n = x.zslNext;
+			dictUnlink(x);
+			zslDeleteNode(x, update);
+			clearLinks(x);
+			removed++;
+			x = n;
+		}
+		clearUpdate();
+		return removed;
+	}
+	
+	/**
+	 * 移除排名区间内的所有元素，ZREMRANGEBYRANK
+	 * 排名从0开始，闭区间，负数表示从末尾倒数。
+	 * @param start
+	 * @param stop
+	 * @return 移除的个数
+	 */
+	public int removeRangeByRank(long start, long stop) {
+		/* Sanitize indexes. */
+		long llen = length;
+		if (start < 0) start = llen + start;
+		if (stop < 0) stop = llen + stop;
+		if (start < 0) start = 0;
+		if (start > stop || start >= llen) {
+			return 0;
+		}
+		if (stop >= llen) stop = llen - 1;
+		
+		long traversed = 0;
+		IntrusiveZSetEle<K> x = header;
+		for (int i = level - 1; i >= 0; i--) {
+			while (next(x, i) != null && traversed + span(x, i) <= start) {
+				traversed += span(x, i);
+				x = next(x, i);
+			}
+			update[i] = x;
+		}
+		
+		int removed = 0;
+		x = x.zslNext;
+		for (long r = start; x != null && r <= stop; r++) {
+			IntrusiveZSetEle<K> n = x.zslNext;
+			dictUnlink(x);
+			zslDeleteNode(x, update);
+			clearLinks(x);
+			removed++;
+			x = n;
+		}
+		clearUpdate();
+		return removed;
+	}
+	
+	/**
+	 * 查找附近的元素
+	 * 找到所有可能的，需要在外层再判断实际距离和radius是否满足
+	 * @param x
+	 * @param y
+	 * @param radius
+	 */
+	public List<E> georadius(double x, double y, double radius) {
+		ZSets.GeoArea area = ZSets.geohashGetAreasByRadius(x, y, radius);
+		
+		List<E> members = new ArrayList<>();
+		
+		long last_processed = -1;
+		for (long geohash : area.geohashNeighbors) {
+			if (geohash == -1 || last_processed == geohash) {
+				continue;
+			}
+			long[] scores = ZSets.scoresOfGeoHashBox(geohash, area.steps);
+			rangeByScore(scores[0], scores[1], members);
+			last_processed = geohash;
+		}
+		
+		return members;
+	}
+	
+	//-=-=-=-=-=-=-=-=-=-=-=-=跳表-=-=-=-=-=-=-=-=-=-=-=-=//
+	
+	// 第0层的指针在元素的字段中，跨度总是1（没有forward时为0），不占用数组
+	
+	private static <K> IntrusiveZSetEle<K> next(IntrusiveZSetEle<K> x, int i) {
+		return i == 0 ? x.zslNext : x.zslLinks[(i - 1) << 1];
+	}
+	
+	private static <K> IntrusiveZSetEle<K> prev(IntrusiveZSetEle<K> x, int i) {
+		return i == 0 ? x.zslPrev : x.zslLinks[((i - 1) << 1) + 1];
+	}
+	
+	private static <K> void setNext(IntrusiveZSetEle<K> x, int i, IntrusiveZSetEle<K> n) {
+		if (i == 0) {
+			x.zslNext = n;
+		}
+		else {
+			x.zslLinks[(i - 1) << 1] = n;
+		}
+	}
+	
+	private static <K> void setPrev(IntrusiveZSetEle<K> x, int i, IntrusiveZSetEle<K> p) {
+		if (i == 0) {
+			x.zslPrev = p;
+		}
+		else {
+			x.zslLinks[((i - 1) << 1) + 1] = p;
+		}
+	}
+	
+	private static int span(IntrusiveZSetEle<?> x, int i) {
+		if (i == 0) {
+			return x.zslNext == null ? 0 : 1;
+		}
+		return x.zslSpan[i - 1];
+	}
+	
+	/**
+	 * 修改第i层的跨度，第0层由forward决定，忽略
+	 */
+	private static void setSpan(IntrusiveZSetEle<?> x, int i, int span) {
+		if (i > 0) {
+			x.zslSpan[i - 1] = span;
+		}
+	}
+	
+	/**
+	 * 随机层数，每层晋升概率为1/4
+	 * @return
+	 */
+	private static int randomLevel() {
+		int lvl = 1;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (lvl < ZSKIPLIST_MAXLEVEL && (random.nextInt() & 0x3) == 0) {
+			lvl++;
+		}
+		return lvl;
+	}
+	
+	/**
+	 * 插入到相同分值元素的最后。元素已有层级数组时复用。
+	 * @param ele
+	 * @param lvl
+	 */
+	private void zslInsert(IntrusiveZSetEle<K> ele, int lvl) {
+		long score = ele.score;
+		IntrusiveZSetEle<K> x = header;
+		for (int i = level - 1; i >= 0; i--) {
+			rank[i] = i == level - 1 ? 0 : rank[i + 1];
+			IntrusiveZSetEle<K> n;
+			while ((n = next(x, i)) != null && n.score <= score) {
+				rank[i] += span(x, i);
+				x = n;
+			}
+			update[i] = x;
+		}
+		
+		if (lvl > level) {
+			for (int i = level; i < lvl; i++) {
+				rank[i] = 0;
+				update[i] = header;
+				header.zslSpan[i - 1] = length;
+			}
+			level = lvl;
+		}
+		
+		if (ele.zslLevel != lvl) {
+			ele.zslLevel = lvl;
+			ele.zslLinks = lvl == 1 ? null : newArray((lvl - 1) * 2);
+			ele.zslSpan = lvl == 1 ? null : new int[lvl - 1];
+		}
+		for (int i = 0; i < lvl; i++) {
+			IntrusiveZSetEle<K> u = update[i];
+			IntrusiveZSetEle<K> n = next(u, i);
+			setNext(ele, i, n);
+			setPrev(ele, i, u);
+			if (n != null) {
+				setPrev(n, i, ele);
+			}
+			setNext(u, i, ele);
+			
+			setSpan(ele, i, span(u, i) - (rank[0] - rank[i]));
+			setSpan(u, i, (rank[0] - rank[i]) + 1);
+		}
+		
+		/* increment span for untouched levels */
+		for (int i = lvl; i < level; i++) {
+			update[i].zslSpan[i - 1]++;
+		}
+		
+		if (ele.zslNext == null) {
+			tail = ele;
+		}
+		length++;
+		
+		for (int i = 0; i < level; i++) {
+			update[i] = null;
+		}
+	}
+	
+	/**
+	 * 从跳表中断开元素
+	 * 低层通过backward指针直接断开；更高层跨过该元素的节点，沿backward指针向前找到第一个足够高的节点，span减一。
+	 * 期望复杂度O(log n)，不需要按分值查找。
+	 * @param x
+	 */
+	private void zslUnlink(IntrusiveZSetEle<K> x) {
+		int lvl = x.zslLevel;
+		for (int i = 0; i < lvl; i++) {
+			IntrusiveZSetEle<K> p = prev(x, i);
+			IntrusiveZSetEle<K> n = next(x, i);
+			setSpan(p, i, span(p, i) + span(x, i) - 1);
+			setNext(p, i, n);
+			if (n != null) {
+				setPrev(n, i, p);
+			}
+		}
+		
+		IntrusiveZSetEle<K> p = prev(x, lvl - 1);
+		for (int i = lvl; i < level; i++) {
+			while (p.zslLevel <= i) {
+				p = prev(p, p.zslLevel - 1);
+			}
+			p.zslSpan[i - 1]--;
+		}
+		
+		if (tail == x) {
+			IntrusiveZSetEle<K> p0 = x.zslPrev;
+			tail = p0 == header ? null : p0;
+		}
+		while (level > 1 && next(header, level - 1) == null) {
+			level--;
+		}
+		length--;
+	}
+	
+	/**
+	 * 已知各层前驱路径时摘除元素，复杂度O(level)
+	 * @param x
+	 * @param update	各层中x之前的最后一个节点
+	 */
+	private void zslDeleteNode(IntrusiveZSetEle<K> x, IntrusiveZSetEle<K>[] update) {
+		int lvl = x.zslLevel;
+		for (int i = 0; i < level; i++) {
+			IntrusiveZSetEle<K> u = update[i];
+			if (i < lvl) {
+				IntrusiveZSetEle<K> n = next(x, i);
+				setSpan(u, i, span(u, i) + span(x, i) - 1);
+				setNext(u, i, n);
+				if (n != null) {
+					setPrev(n, i, u);
+				}
+			}
+			else {
+				u.zslSpan[i - 1] -= 1;
+			}
+		}
+		if (tail == x) {
+			IntrusiveZSetEle<K> p0 = x.zslPrev;
+			tail = p0 == header ? null : p0;
+		}
+		while (level > 1 && next(header, level - 1) == null) {
+			level--;
+		}
+		length--;
+	}
+	
+	private void clearUpdate() {
+		for (int i = 0; i < ZSKIPLIST_MAXLEVEL; i++) {
+			update[i] = null;
+		}
+	}
+	
+	/**
+	 * 第一个score >= min的元素
+	 * @param min
+	 * @return
+	 */
+	private IntrusiveZSetEle<K> zslFirstInRange(long min) {
+		IntrusiveZSetEle<K> x = header;
+		for (int i = level - 1; i >= 0; i--) {
+			IntrusiveZSetEle<K> n;
+			while ((n = next(x, i)) != null && n.score < min) {
+				x = n;
+			}
+		}
+		return next(x, 0);
+	}
+	
+	/**
+	 * 最后一个score <= max的元素
+	 * @param max
+	 * @return
+	 */
+	private IntrusiveZSetEle<K> zslLastInRange(long max) {
+		IntrusiveZSetEle<K> x = header;
+		for (int i = level - 1; i >= 0; i--) {
+			IntrusiveZSetEle<K> n;
+			while ((n = next(x, i)) != null && n.score <= max) {
+				x = n;
+			}
+		}
+		return x == header ? null : x;
+	}
+	
+	/**
+	 * 元素的排名，从0开始
+	 * 从元素自身沿backward指针向上回溯，不需要按分值查找
+	 * @param ele
+	 * @return
+	 */
+	private long zslRank(IntrusiveZSetEle<K> ele) {
+		long rank = 0;
+		IntrusiveZSetEle<K> x = ele;
+		while (x != header) {
+			int i = x.zslLevel - 1;
+			IntrusiveZSetEle<K> p = prev(x, i);
+			rank += span(p, i);
+			x = p;
+		}
+		return rank - 1;
+	}
+	
+	/**
+	 * 通过排名获取，排名从1开始
+	 * @param rank
+	 * @return
+	 */
+	private IntrusiveZSetEle<K> zslGetElementByRank(long rank) {
+		long traversed = 0;
+		IntrusiveZSetEle<K> x = header;
+		for (int i = level - 1; i >= 0; i--) {
+			while (next(x, i) != null && traversed + span(x, i) <= rank) {
+				traversed += span(x, i);
+				x = next(x, i);
+			}
+			if (traversed == rank) {
+				return x;
+			}
+		}
+		return null;
+	}
+	
+	private static void clearLinks(IntrusiveZSetEle<?> ele) {
+		ele.zslNext = null;
+		ele.zslPrev = null;
+		ele.zslLevel = 0;
+		ele.zslLinks = null;
+		ele.zslSpan = null;
+		ele.dictNext = null;
+	}
+	
+	//-=-=-=-=-=-=-=-=-=-=-=-=哈希表-=-=-=-=-=-=-=-=-=-=-=-=//
+	
+	private static int hash(Object id) {
+		int h = id.hashCode();
+		return h ^ (h >>> 16);
+	}
+	
+	private IntrusiveZSetEle<K> dictFind(K id) {
+		int h = hash(id);
+		IntrusiveZSetEle<K> e = table[h & (table.length - 1)];
+		while (e != null) {
+			if (e.dictHash == h && id.equals(e.getKey())) {
+				return e;
+			}
+			e = e.dictNext;
+		}
+		return null;
+	}
+	
+	/**
+	 * 元素是否在该集合中，按引用比较
+	 * @param ele
+	 * @return
+	 */
+	private boolean dictContains(IntrusiveZSetEle<K> ele) {
+		if (ele.zslLevel == 0) {
+			return false;
+		}
+		IntrusiveZSetEle<K> e = table[ele.dictHash & (table.length - 1)];
+		while (e != null) {
+			if (e == ele) {
+				return true;
+			}
+			e = e.dictNext;
+		}
+		return false;
+	}
+	
+	private void dictAdd(IntrusiveZSetEle<K> ele) {
+		if (length + 1 > (table.length >> 2) * 3) {
+			dictExpand();
+		}
+		int h = hash(ele.getKey());
+		int idx = h & (table.length - 1);
+		ele.dictHash = h;
+		ele.dictNext = table[idx];
+		table[idx] = ele;
+	}
+	
+	/**
+	 * 从哈希链中断开，按引用比较
+	 * @param ele
+	 * @return 不在该集合中返回false
+	 */
+	private boolean dictUnlink(IntrusiveZSetEle<K> ele) {
+		if (ele.zslLevel == 0) {
+			return false;
+		}
+		int idx = ele.dictHash & (table.length - 1);
+		IntrusiveZSetEle<K> e = table[idx];
+		IntrusiveZSetEle<K> p = null;
+		while (e != null) {
+			if (e == ele) {
+				if (p == null) {
+					table[idx] = e.dictNext;
+				}
+				else {
+					p.dictNext = e.dictNext;
+				}
+				e.dictNext = null;
+				return true;
+			}
+			p = e;
+			e = e.dictNext;
+		}
+		return false;
+	}
+	
+	private void dictExpand() {
+		IntrusiveZSetEle<K>[] old = table;
+		IntrusiveZSetEle<K>[] tab = newArray(old.length << 1);
+		int mask = tab.length - 1;
+		for (IntrusiveZSetEle<K> e : old) {
+			while (e != null) {
+				IntrusiveZSetEle<K> next = e.dictNext;
+				int idx = e.dictHash & mask;
+				e.dictNext = tab[idx];
+				tab[idx] = e;
+				e = next;
+			}
+		}
+		table = tab;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <K> IntrusiveZSetEle<K>[] newArray(int n) {
+		return (IntrusiveZSetEle<K>[]) new IntrusiveZSetEle<?>[n];
+	}
+	
+	/**
+	 * 跳表头节点
+	 */
+	private static final class Header<K> extends IntrusiveZSetEle<K> {
+		@Override
+		public K getKey() {
+			return null;
+		}
+	}
+
+}
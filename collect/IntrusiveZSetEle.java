@@ -0,0 +1,35 @@
+package com.yiba.core.collect;
+
+/**
+ * IntrusiveZSet元素的基类
+ * 跳表的各层指针和哈希链保存在元素自身中，元素自身即为索引节点，不再额外包装。
+ * 只有放入IntrusiveZSet的元素继承该类，普通ZSet的元素不需要为这些字段付出内存。
+ * 一个元素同一时间只能属于一个IntrusiveZSet。
+ * @author U-Demon
+ * @param <K>
+ */
+public abstract class IntrusiveZSetEle<K> extends ZSetEle<K> {
+	
+	/** 跳表第0层的forward和backward，范围遍历只读这两个字段 */
+	IntrusiveZSetEle<K> zslNext;
+	IntrusiveZSetEle<K> zslPrev;
+	
+	/** 跳表层数，0表示不属于任何IntrusiveZSet */
+	int zslLevel;
+	
+	/**
+	 * 第1层及以上的指针，[2(i-1)]为第i层的forward，[2(i-1)+1]为第i层的backward。
+	 * 约3/4的元素只有一层，为null。
+	 */
+	IntrusiveZSetEle<K>[] zslLinks;
+	
+	/** 第1层及以上forward跨越的元素个数，第0层的跨度总是1 */
+	int[] zslSpan;
+	
+	/** 哈希桶链表中的下一个元素 */
+	IntrusiveZSetEle<K> dictNext;
+	
+	/** 缓存的key的hash值 */
+	int dictHash;
+
+}
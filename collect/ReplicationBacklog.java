@@ -0,0 +1,98 @@
+package com.yiba.core.collect;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * 复制积压缓冲区
+ * 固定大小的环形缓冲区，保存最近写入的复制流，用于断线重连后的部分同步。
+ * 只允许一个写线程；读线程不加锁。写线程在覆盖之前先发布本次写入的结束位置reserved，
+ * 读线程复制完成后再检查reserved，数据在复制过程中被覆盖（包括正在写入的）时返回-1。
+ * @author U-Demon
+ */
+public class ReplicationBacklog {
+	
+	private final byte[] buf;
+	
+	private final int mask;
+	
+	/** 复制流写入的总字节数，即下一个字节的offset */
+	private volatile long offset;
+	
+	/** 正在写入的数据的结束offset，写入前发布，不小于offset */
+	private volatile long reserved;
+	
+	/**
+	 * @param size	必须为2的幂
+	 */
+	public ReplicationBacklog(int size) {
+		if (size <= 0 || (size & (size - 1)) != 0) {
+			throw new IllegalArgumentException("backlog size must be a power of two: " + size);
+		}
+		this.buf = new byte[size];
+		this.mask = size - 1;
+	}
+	
+	public long offset() {
+		return offset;
+	}
+	
+	public int size() {
+		return buf.length;
+	}
+	
+	/**
+	 * 写线程：追加
+	 * @param b
+	 * @param off
+	 * @param len
+	 */
+	public void write(byte[] b, int off, int len) {
+		if (len > buf.length) {
+			throw new IllegalArgumentException("record larger than backlog: " + len);
+		}
+		long o = offset;
+		reserved = o + len;
+		// reserved必须先于覆盖的数据对读线程可见
+		VarHandle.releaseFence();
+		int pos = (int) (o & mask);
+		int first = Math.min(len, buf.length - pos);
+		System.arraycopy(b, off, buf, pos, first);
+		System.arraycopy(b, off + first, buf, 0, len - first);
+		offset = o + len;
+	}
+	
+	/**
+	 * from开始的数据是否还在缓冲区中
+	 * @param from
+	 * @return
+	 */
+	public boolean contains(long from) {
+		long end = offset;
+		return from >= 0 && from <= end && end - from <= buf.length;
+	}
+	
+	/**
+	 * 读取from开始的数据
+	 * @param from
+	 * @param dst
+	 * @return 读取的字节数，数据已被覆盖返回-1
+	 */
+	public int read(long from, byte[] dst) {
+		long end = offset;
+		if (from > end || end - from > buf.length) {
+			return -1;
+		}
+		int len = (int) Math.min(dst.length, end - from);
+		int pos = (int) (from & mask);
+		int first = Math.min(len, buf.length - pos);
+		System.arraycopy(buf, pos, dst, 0, first);
+		System.arraycopy(buf, 0, dst, first, len - first);
+		// 复制过程中写线程可能已经绕回覆盖，读取reserved之前必须完成数据的读取
+		VarHandle.acquireFence();
+		if (reserved - from > buf.length) {
+			return -1;
+		}
+		return len;
+	}
+
+}
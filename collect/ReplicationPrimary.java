@@ -0,0 +1,444 @@
+package com.yiba.core.collect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ZSet复制的主节点
+ * 作为{@link ZSetListener}挂在要复制的ZSet上，在写线程中把每次修改编码后追加到{@link ReplicationBacklog}。
+ * 每个副本连接有自己的发送线程，从积压缓冲区中批量读取并写入socket，写线程不会等待网络。
+ * 副本连接时带上replid和offset，缓冲区中还有对应数据时部分同步，否则在下一次{@link #tick()}时
+ * 取所有ZSet的快照和当时的offset，由发送线程在后台发送全量数据后再接着发送复制流。
+ * replicate/tick/修改ZSet都必须在同一个写线程中调用。
+ * @author U-Demon
+ */
+public class ReplicationPrimary<E extends ZSetEle<K>, K> implements ZSetListener<E, K> {
+	
+	/* 同步回复 */
+	static final byte FULLRESYNC = 1;
+	static final byte CONTINUE = 2;
+	
+	/* 复制流中的操作 */
+	static final byte OP_ADD = 1;
+	static final byte OP_UPDATE = 2;
+	static final byte OP_REM = 3;
+	static final byte OP_REMRANGEBYSCORE = 4;
+	static final byte OP_REMRANGEBYRANK = 5;
+	static final byte OP_PING = 6;
+	
+	/** 发送线程每次从积压缓冲区读取的最大字节数 */
+	private static final int SEND_CHUNK = 64 * 1024;
+	
+	private final ZSetCodec<E, K> codec;
+	
+	private final ReplicationBacklog backlog;
+	
+	/** 本次运行的复制ID，重启后副本必须全量同步 */
+	private final String replid;
+	
+	/** 复制的ZSet，只在写线程中访问 */
+	private final Map<String, ZSet<E, K>> zsets = new LinkedHashMap<>();
+	
+	/** 编码单条记录，只在写线程中使用 */
+	private final RecordBuffer rec = new RecordBuffer();
+	private final DataOutputStream out = new DataOutputStream(rec);
+	
+	/** 等待全量同步的副本 */
+	private final Queue<Replica> pendingFull = new ConcurrentLinkedQueue<>();
+	
+	private final List<Replica> replicas = new CopyOnWriteArrayList<>();
+	
+	private ServerSocket server;
+	
+	private volatile boolean running;
+	
+	/** PING的间隔，副本用PING中的时间戳计算延迟 */
+	private long pingIntervalMillis = 100;
+	private long lastPing;
+	
+	/**
+	 * @param codec
+	 * @param backlogSize	积压缓冲区大小，必须为2的幂
+	 */
+	public ReplicationPrimary(ZSetCodec<E, K> codec, int backlogSize) {
+		this.codec = codec;
+		this.backlog = new ReplicationBacklog(backlogSize);
+		this.replid = UUID.randomUUID().toString();
+	}
+	
+	public String getReplid() {
+		return replid;
+	}
+	
+	/**
+	 * 复制流当前的offset
+	 * @return
+	 */
+	public long offset() {
+		return backlog.offset();
+	}
+	
+	public void setPingIntervalMillis(long pingIntervalMillis) {
+		this.pingIntervalMillis = pingIntervalMillis;
+	}
+	
+	/**
+	 * 开始复制一个ZSet，已有的元素作为ADD写入复制流
+	 * @param zset
+	 */
+	public void replicate(ZSet<E, K> zset) {
+		zset.enableSnapshot();
+		zset.setListener(this);
+		zsets.put(zset.getKey(), zset);
+		for (Map.Entry<Long, List<E>> entry : zset.zsl.entrySet()) {
+			for (E ele : entry.getValue()) {
+				onAdd(zset, ele, entry.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * 开始监听副本连接
+	 * @param port	0表示随机端口
+	 * @throws IOException
+	 */
+	public void listen(int port) throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+		running = true;
+		Thread acceptor = new Thread(this::acceptLoop, "repl-acceptor-" + server.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	public int getPort() {
+		return server.getLocalPort();
+	}
+	
+	/**
+	 * 写线程每帧调用：发送PING，处理全量同步请求，唤醒发送线程
+	 */
+	public void tick() {
+		long now = System.currentTimeMillis();
+		if (now - lastPing >= pingIntervalMillis) {
+			lastPing = now;
+			try {
+				out.writeByte(OP_PING);
+				out.writeLong(now);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			commit();
+		}
+		
+		Replica r;
+		while ((r = pendingFull.poll()) != null) {
+			Map<String, ZSetSnapshot<E, K>> snapshots = new LinkedHashMap<>();
+			for (ZSet<E, K> zset : zsets.values()) {
+				snapshots.put(zset.getKey(), zset.snapshot());
+			}
+			r.startFullSync(snapshots, backlog.offset());
+		}
+		
+		for (Replica replica : replicas) {
+			LockSupport.unpark(replica.sender);
+		}
+	}
+	
+	/**
+	 * 当前连接的副本
+	 * @return
+	 */
+	public List<Replica> replicas() {
+		return replicas;
+	}
+	
+	public void close() {
+		running = false;
+		try {
+			if (server != null) {
+				server.close();
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+		for (Replica replica : replicas) {
+			replica.close();
+		}
+	}
+	
+	//-=-=-=-=-=-=-=-=-=-=-=-=ZSetListener-=-=-=-=-=-=-=-=-=-=-=-=//
+	
+	@Override
+	public void onAdd(ZSet<E, K> zset, E ele, long score) {
+		try {
+			out.writeByte(OP_ADD);
+			out.writeUTF(zset.getKey());
+			out.writeLong(score);
+			codec.writeElement(out, ele);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		commit();
+	}
+	
+	@Override
+	public void onUpdate(ZSet<E, K> zset, E ele, long oldScore, long score) {
+		try {
+			out.writeByte(OP_UPDATE);
+			out.writeUTF(zset.getKey());
+			codec.writeKey(out, ele.getKey());
+			out.writeLong(score);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		commit();
+	}
+	
+	@Override
+	public void onRemove(ZSet<E, K> zset, E ele, long score) {
+		try {
+			out.writeByte(OP_REM);
+			out.writeUTF(zset.getKey());
+			codec.writeKey(out, ele.getKey());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		commit();
+	}
+	
+	@Override
+	public void onRemoveRangeByScore(ZSet<E, K> zset, long min, long max) {
+		try {
+			out.writeByte(OP_REMRANGEBYSCORE);
+			out.writeUTF(zset.getKey());
+			out.writeLong(min);
+			out.writeLong(max);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		commit();
+	}
+	
+	@Override
+	public void onRemoveRangeByRank(ZSet<E, K> zset, long start, long stop) {
+		try {
+			out.writeByte(OP_REMRANGEBYRANK);
+			out.writeUTF(zset.getKey());
+			out.writeLong(start);
+			out.writeLong(stop);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		commit();
+	}
+	
+	/**
+	 * 编码好的记录追加到积压缓冲区
+	 */
+	private void commit() {
+		backlog.write(rec.buf(), 0, rec.size());
+		rec.reset();
+	}
+	
+	private void acceptLoop() {
+		while (running) {
+			try {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Replica replica = new Replica(socket);
+				Thread sender = new Thread(replica::serve, "repl-sender-" + socket.getRemoteSocketAddress());
+				sender.setDaemon(true);
+				replica.sender = sender;
+				replicas.add(replica);
+				sender.start();
+			} catch (IOException e) {
+				if (running) {
+					LogCore.temp.warn("replication accept failed: " + e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 一个副本连接
+	 */
+	public class Replica {
+		
+		private final Socket socket;
+		
+		private Thread sender;
+		
+		/** 已写入socket的offset */
+		private volatile long sentOffset = -1;
+		
+		/** 副本确认已应用的offset */
+		private volatile long ackOffset = -1;
+		private volatile long lastAckMillis;
+		
+		/** 全量同步的数据，由写线程设置 */
+		private volatile Map<String, ZSetSnapshot<E, K>> syncSnapshots;
+		private volatile long syncOffset = -1;
+		
+		Replica(Socket socket) {
+			this.socket = socket;
+		}
+		
+		public SocketAddress getAddress() {
+			return socket.getRemoteSocketAddress();
+		}
+		
+		public long getSentOffset() {
+			return sentOffset;
+		}
+		
+		public long getAckOffset() {
+			return ackOffset;
+		}
+		
+		public long getLastAckMillis() {
+			return lastAckMillis;
+		}
+		
+		/**
+		 * 复制延迟，主节点offset与副本确认的offset之差
+		 * @return 字节数，还未确认过返回-1
+		 */
+		public long getLagBytes() {
+			long ack = ackOffset;
+			return ack < 0 ? -1 : backlog.offset() - ack;
+		}
+		
+		void startFullSync(Map<String, ZSetSnapshot<E, K>> snapshots, long offset) {
+			this.syncSnapshots = snapshots;
+			this.syncOffset = offset;
+			LockSupport.unpark(sender);
+		}
+		
+		/**
+		 * 发送线程：握手，全量或部分同步，然后持续发送复制流
+		 */
+		private void serve() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), SEND_CHUNK));
+				
+				String id = in.readUTF();
+				long from = in.readLong();
+				if (replid.equals(id) && backlog.contains(from)) {
+					out.writeByte(CONTINUE);
+					sentOffset = from;
+				}
+				else {
+					pendingFull.add(this);
+					while (syncOffset < 0) {
+						if (!running) {
+							return;
+						}
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+					}
+					out.writeByte(FULLRESYNC);
+					out.writeUTF(replid);
+					out.writeLong(syncOffset);
+					writeSnapshots(out, syncSnapshots);
+					syncSnapshots = null;
+					sentOffset = syncOffset;
+				}
+				out.flush();
+				
+				Thread acker = new Thread(() -> readAcks(in), "repl-ack-" + socket.getRemoteSocketAddress());
+				acker.setDaemon(true);
+				acker.start();
+				
+				byte[] chunk = new byte[SEND_CHUNK];
+				while (running && !socket.isClosed()) {
+					int n = backlog.read(sentOffset, chunk);
+					if (n < 0) {
+						// 副本落后太多，断开后由副本重新全量同步
+						LogCore.temp.warn("replica too far behind, disconnect: " + getAddress());
+						break;
+					}
+					if (n == 0) {
+						out.flush();
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+						continue;
+					}
+					out.write(chunk, 0, n);
+					sentOffset += n;
+				}
+			} catch (IOException e) {
+				LogCore.temp.debug("replica disconnected: " + getAddress() + ", " + e);
+			} finally {
+				close();
+			}
+		}
+		
+		private void writeSnapshots(DataOutputStream out, Map<String, ZSetSnapshot<E, K>> snapshots) throws IOException {
+			out.writeInt(snapshots.size());
+			for (Map.Entry<String, ZSetSnapshot<E, K>> entry : snapshots.entrySet()) {
+				ZSetSnapshot<E, K> snapshot = entry.getValue();
+				List<E> members = snapshot.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE);
+				out.writeUTF(entry.getKey());
+				out.writeInt(members.size());
+				for (E ele : members) {
+					out.writeLong(snapshot.score(ele.getKey()));
+					codec.writeElement(out, ele);
+				}
+			}
+		}
+		
+		private void readAcks(DataInputStream in) {
+			try {
+				while (true) {
+					ackOffset = in.readLong();
+					lastAckMillis = System.currentTimeMillis();
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+		
+		void close() {
+			replicas.remove(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * 可以直接访问内部数组的ByteArrayOutputStream
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		
+		RecordBuffer() {
+			super(256);
+		}
+		
+		byte[] buf() {
+			return buf;
+		}
+	}
+
+}
@@ -0,0 +1,305 @@
+package com.yiba.core.collect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ZSet复制的副本
+ * 连接主节点，全量或部分同步后持续应用复制流，保持一份只读的ZSet拷贝。
+ * 复制线程是这些ZSet唯一的写线程，其他线程通过{@link #snapshot(String)}查询。
+ * 断线后自动重连，带上replid和已应用的offset，主节点积压缓冲区中还有数据时只需部分同步。
+ * @author U-Demon
+ */
+public class ReplicationReplica<E extends ZSetEle<K>, K> {
+	
+	private final ZSetCodec<E, K> codec;
+	
+	private final String host;
+	
+	private final int port;
+	
+	/** 主节点的复制ID，未同步过为"?" */
+	private volatile String replid = "?";
+	
+	/** 已应用的复制流offset，即下一个字节的offset */
+	private volatile long offset = -1;
+	
+	/** 副本的ZSet，全量同步时整体替换 */
+	private volatile Map<String, ZSet<E, K>> keyspace = new ConcurrentHashMap<>();
+	
+	private volatile boolean running;
+	
+	private Thread thread;
+	
+	private volatile Socket socket;
+	
+	/** 向主节点确认offset的间隔 */
+	private long ackIntervalMillis = 100;
+	
+	/** 断线重连的间隔 */
+	private long retryMillis = 200;
+	
+	/** 最近一次PING的延迟 */
+	private volatile long lagMillis = -1;
+	
+	private volatile int fullSyncs;
+	private volatile int partialSyncs;
+	
+	public ReplicationReplica(ZSetCodec<E, K> codec, String host, int port) {
+		this.codec = codec;
+		this.host = host;
+		this.port = port;
+	}
+	
+	public void setAckIntervalMillis(long ackIntervalMillis) {
+		this.ackIntervalMillis = ackIntervalMillis;
+	}
+	
+	public void setRetryMillis(long retryMillis) {
+		this.retryMillis = retryMillis;
+	}
+	
+	public void start() {
+		running = true;
+		thread = new Thread(this::loop, "repl-replica-" + host + ":" + port);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public void close() {
+		running = false;
+		Socket s = socket;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * 只读快照，不存在返回null
+	 * @param key
+	 * @return
+	 */
+	public ZSetSnapshot<E, K> snapshot(String key) {
+		ZSet<E, K> zset = keyspace.get(key);
+		return zset == null ? null : zset.snapshot();
+	}
+	
+	public String getReplid() {
+		return replid;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	/**
+	 * 复制延迟，应用最近一次PING时与主节点发出时的时间差
+	 * @return 毫秒，还未收到PING返回-1
+	 */
+	public long getLagMillis() {
+		return lagMillis;
+	}
+	
+	public int getFullSyncs() {
+		return fullSyncs;
+	}
+	
+	public int getPartialSyncs() {
+		return partialSyncs;
+	}
+	
+	private void loop() {
+		while (running) {
+			try (Socket s = new Socket(host, port)) {
+				socket = s;
+				s.setTcpNoDelay(true);
+				sync(s);
+			} catch (IOException e) {
+				if (!running) {
+					return;
+				}
+				LogCore.temp.debug("replication link lost: " + e);
+				try {
+					Thread.sleep(retryMillis);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+	
+	private void sync(Socket s) throws IOException {
+		CountingInputStream counting = new CountingInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+		DataInputStream in = new DataInputStream(counting);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		
+		out.writeUTF(replid);
+		out.writeLong(offset);
+		out.flush();
+		
+		Map<String, ZSet<E, K>> zsets = keyspace;
+		byte reply = in.readByte();
+		if (reply == ReplicationPrimary.FULLRESYNC) {
+			String id = in.readUTF();
+			long off = in.readLong();
+			zsets = loadSnapshots(in);
+			replid = id;
+			offset = off;
+			keyspace = zsets;
+			fullSyncs++;
+		}
+		else if (reply == ReplicationPrimary.CONTINUE) {
+			partialSyncs++;
+		}
+		else {
+			throw new IOException("unknown sync reply: " + reply);
+		}
+		
+		// 复制流的起点，之后offset = base + 已读取的字节数
+		long base = offset - counting.count;
+		long lastAck = 0;
+		while (running) {
+			apply(in, zsets);
+			offset = base + counting.count;
+			// 按时间间隔确认，持续有数据时也不能等到积压处理完
+			long now = System.currentTimeMillis();
+			if (now - lastAck >= ackIntervalMillis) {
+				out.writeLong(offset);
+				out.flush();
+				lastAck = now;
+			}
+		}
+	}
+	
+	private Map<String, ZSet<E, K>> loadSnapshots(DataInputStream in) throws IOException {
+		Map<String, ZSet<E, K>> zsets = new ConcurrentHashMap<>();
+		int n = in.readInt();
+		for (int i = 0; i < n; ++i) {
+			String key = in.readUTF();
+			ZSet<E, K> zset = newZSet(key);
+			int size = in.readInt();
+			for (int j = 0; j < size; ++j) {
+				long score = in.readLong();
+				E ele = codec.readElement(in);
+				ele.setScore(score);
+				zset.add(score, ele, false, false, false);
+			}
+			zsets.put(key, zset);
+		}
+		return zsets;
+	}
+	
+	/**
+	 * 应用一条复制记录
+	 */
+	private void apply(DataInputStream in, Map<String, ZSet<E, K>> zsets) throws IOException {
+		byte op = in.readByte();
+		switch (op) {
+		case ReplicationPrimary.OP_ADD: {
+			String key = in.readUTF();
+			long score = in.readLong();
+			E ele = codec.readElement(in);
+			ele.setScore(score);
+			zsets.computeIfAbsent(key, this::newZSet).add(score, ele, false, false, false);
+			break;
+		}
+		case ReplicationPrimary.OP_UPDATE: {
+			ZSet<E, K> zset = zsets.get(in.readUTF());
+			K id = codec.readKey(in);
+			long score = in.readLong();
+			E de = zset == null ? null : zset.dict.get(id);
+			if (de != null) {
+				zset.add(score, de, false, false, false);
+			}
+			break;
+		}
+		case ReplicationPrimary.OP_REM: {
+			ZSet<E, K> zset = zsets.get(in.readUTF());
+			K id = codec.readKey(in);
+			if (zset != null) {
+				zset.remove(id);
+			}
+			break;
+		}
+		case ReplicationPrimary.OP_REMRANGEBYSCORE: {
+			ZSet<E, K> zset = zsets.get(in.readUTF());
+			long min = in.readLong();
+			long max = in.readLong();
+			if (zset != null) {
+				zset.removeRangeByScore(min, max);
+			}
+			break;
+		}
+		case ReplicationPrimary.OP_REMRANGEBYRANK: {
+			ZSet<E, K> zset = zsets.get(in.readUTF());
+			long start = in.readLong();
+			long stop = in.readLong();
+			if (zset != null) {
+				zset.removeRangeByRank(start, stop);
+			}
+			break;
+		}
+		case ReplicationPrimary.OP_PING:
+			lagMillis = System.currentTimeMillis() - in.readLong();
+			break;
+		default:
+			throw new IOException("unknown replication op: " + op);
+		}
+	}
+	
+	private ZSet<E, K> newZSet(String key) {
+		ZSet<E, K> zset = new ZSet<>(key);
+		zset.enableSnapshot();
+		return zset;
+	}
+	
+	/**
+	 * 统计已读取字节数的输入流
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		
+		long count;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+}
@@ -0,0 +1,367 @@
+package com.yiba.core.collect;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 按空间分片的geo索引
+ * 用score（geohash）的高位前缀把地图切成4^shardSteps块，每块是一个独立的{@link ZSet}。
+ * 分片固定分配给数量有限的线程（默认为CPU核数），分片i属于线程i % threads，只由该线程读写，相邻的分片在不同的线程中。
+ * 所有修改都投递到分片所属的线程中执行；跨分片的移动由旧分片移除后再交给新分片加入；
+ * 覆盖多个分片的georadius并行地在各分片线程中查找，再合并结果。
+ * 路由（add/move/remove的调用）只允许一个线程，一般是场景线程。
+ * 跨分片移动的过程中，查询可能短暂地查不到该元素。
+ * @author U-Demon
+ */
+public class ShardedGeoZSet<E extends ZSetEle<K>, K> {
+	
+	/** geohash转为score后的位数，与ZSets.geohashAlign52Bits一致 */
+	private static final int SCORE_BITS = 52;
+	
+	/** 分片最多8步，即65536个分片 */
+	private static final int SHARD_STEP_MAX = 8;
+	
+	/** 每次移除至少检查的移除记录个数 */
+	private static final int PURGE_MIN = 2;
+	
+	/** 每次移除额外检查移除记录总数的1/PURGE_RATIO */
+	private static final int PURGE_RATIO = 8;
+	
+	/** key */
+	private final String key;
+	
+	/** 分片所用的geohash步数，x、y各shardSteps位 */
+	private final int shardSteps;
+	
+	/** score右移shift位得到分片序号 */
+	private final int shift;
+	
+	/** 分片 */
+	private final ZSet<E, K>[] shards;
+	
+	/** 分片所属的线程，分片i属于owners[i % owners.length] */
+	private final ExecutorService[] owners;
+	
+	/** 元素当前所在的分片，只在路由线程中访问 */
+	private final Map<K, Loc> located = new HashMap<>();
+	
+	/** 已移除的元素，保留路由信息直到移除完成 */
+	private final ArrayDeque<K> tombstones = new ArrayDeque<>();
+	
+	/**
+	 * 线程数为CPU核数
+	 * @param key
+	 * @param shardSteps
+	 */
+	public ShardedGeoZSet(String key, int shardSteps) {
+		this(key, shardSteps, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param key
+	 * @param shardSteps	分片的geohash步数，共4^shardSteps个分片
+	 * @param threads		线程数，超过分片个数时按分片个数
+	 */
+	@SuppressWarnings("unchecked")
+	public ShardedGeoZSet(String key, int shardSteps, int threads) {
+		if (shardSteps < 1 || shardSteps > SHARD_STEP_MAX) {
+			throw new IllegalArgumentException("shardSteps must be in [1, " + SHARD_STEP_MAX + "]: " + shardSteps);
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		this.key = key;
+		this.shardSteps = shardSteps;
+		this.shift = SCORE_BITS - shardSteps * 2;
+		int n = 1 << (shardSteps * 2);
+		this.shards = (ZSet<E, K>[]) new ZSet<?, ?>[n];
+		for (int i = 0; i < n; ++i) {
+			shards[i] = new ZSet<>(key + "-shard-" + i);
+		}
+		this.owners = new ExecutorService[Math.min(threads, n)];
+		for (int i = 0; i < owners.length; ++i) {
+			String name = key + "-owner-" + i;
+			owners[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+	
+	public String getKey() {
+		return key;
+	}
+	
+	public int getShardSteps() {
+		return shardSteps;
+	}
+	
+	/**
+	 * 分片个数
+	 * @return
+	 */
+	public int shardCount() {
+		return shards.length;
+	}
+	
+	/**
+	 * 线程数
+	 * @return
+	 */
+	public int threadCount() {
+		return owners.length;
+	}
+	
+	/**
+	 * 分片所属的线程
+	 * @param shard
+	 * @return
+	 */
+	private ExecutorService ownerOf(int shard) {
+		return owners[shard % owners.length];
+	}
+	
+	/**
+	 * score所在的分片
+	 * @param score
+	 * @return
+	 */
+	public int shardOf(long score) {
+		return (int) (score >>> shift);
+	}
+	
+	/**
+	 * 添加元素，分值为ele.getScore()
+	 * @param ele
+	 */
+	public void add(E ele) {
+		move(ele, ele.getScore());
+	}
+	
+	/**
+	 * 元素移动到新的分值，不存在时加入
+	 * 同一分片内直接在分片线程中更新；跨分片时旧分片线程移除后交给新分片线程加入。
+	 * @param ele
+	 * @param score
+	 */
+	public void move(E ele, long score) {
+		K id = ele.getKey();
+		int to = shardOf(score);
+		Loc loc = located.get(id);
+		if (loc == null) {
+			loc = new Loc(to);
+			located.put(id, loc);
+		}
+		else if (loc.removed) {
+			loc.removed = false;
+			loc.shard = to;
+		}
+		ZSet<E, K> zset = shards[to];
+		if (loc.shard == to) {
+			submit(loc, to, () -> put(zset, ele, score));
+			return;
+		}
+		
+		ZSet<E, K> old = shards[loc.shard];
+		CompletableFuture<Void> removed = chain(loc, loc.shard, () -> {
+			// 必须先用旧分值移除，再修改分值
+			old.remove(id);
+			ele.setScore(score);
+		});
+		loc.tail = removed.thenRunAsync(() -> put(zset, ele, score), ownerOf(to));
+		loc.shard = to;
+	}
+	
+	/**
+	 * 在分片线程中加入或更新
+	 * 新加入的元素先修改分值；已存在的由ZSet.add用旧分值定位后再修改。
+	 */
+	private static <E extends ZSetEle<K>, K> void put(ZSet<E, K> zset, E ele, long score) {
+		if (!zset.dict.containsKey(ele.getKey())) {
+			ele.setScore(score);
+		}
+		zset.add(score, ele, false, false, false);
+	}
+	
+	/**
+	 * 移除
+	 * @param id
+	 */
+	public void remove(K id) {
+		Loc loc = located.get(id);
+		if (loc == null || loc.removed) {
+			return;
+		}
+		// 移除会读取元素的分值，之后重新加入到其他分片时要排在移除之后
+		ZSet<E, K> zset = shards[loc.shard];
+		loc.tail = chain(loc, loc.shard, () -> zset.remove(id));
+		loc.removed = true;
+		tombstones.add(id);
+		purgeTombstones();
+	}
+	
+	/**
+	 * 清理移交已完成的移除记录
+	 * 检查的个数与记录总数成比例，移除很多时也不会堆积；还未完成的放回队尾，不挡住后面已完成的。
+	 */
+	private void purgeTombstones() {
+		int budget = PURGE_MIN + tombstones.size() / PURGE_RATIO;
+		for (int i = 0; i < budget && !tombstones.isEmpty(); ++i) {
+			K id = tombstones.poll();
+			Loc loc = located.get(id);
+			if (loc != null && loc.removed) {
+				if (!loc.tail.isDone()) {
+					tombstones.add(id);
+					continue;
+				}
+				located.remove(id);
+			}
+		}
+	}
+	
+	/**
+	 * 投递到分片线程
+	 * 元素还有未完成的跨分片移交时，排在移交之后执行，保证同一元素的修改按路由顺序生效。
+	 */
+	private void submit(Loc loc, int shard, Runnable task) {
+		if (loc.tail != null && !loc.tail.isDone()) {
+			loc.tail = loc.tail.thenRunAsync(task, ownerOf(shard));
+		}
+		else {
+			loc.tail = null;
+			ownerOf(shard).execute(task);
+		}
+	}
+	
+	private CompletableFuture<Void> chain(Loc loc, int shard, Runnable task) {
+		if (loc.tail != null && !loc.tail.isDone()) {
+			return loc.tail.thenRunAsync(task, ownerOf(shard));
+		}
+		return CompletableFuture.runAsync(task, ownerOf(shard));
+	}
+	
+	/**
+	 * 查找附近的元素，阻塞调用线程直到所有分片返回
+	 * 找到所有可能的，需要在外层再判断实际距离和radius是否满足
+	 * 不能在分片线程中调用，否则会等待自己所在线程上的查找；路由线程不能阻塞时使用{@link #georadiusAsync}。
+	 * @param x
+	 * @param y
+	 * @param radius
+	 * @return
+	 */
+	public List<E> georadius(double x, double y, double radius) {
+		return georadiusAsync(x, y, radius).join();
+	}
+	
+	/**
+	 * 查找附近的元素
+	 * 搜索区域的score区间按分片切开，涉及的分片按所属线程分组，每个线程查找一次，各线程并行，最后合并。
+	 * @param x
+	 * @param y
+	 * @param radius
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<E>> georadiusAsync(double x, double y, double radius) {
+		ZSets.GeoArea area = ZSets.geohashGetAreasByRadius(x, y, radius);
+		
+		// 每个分片要查找的score区间
+		List<long[]>[] ranges = (List<long[]>[]) new List<?>[shards.length];
+		long last_processed = -1;
+		for (long geohash : area.geohashNeighbors) {
+			if (geohash == -1 || last_processed == geohash) {
+				continue;
+			}
+			long[] scores = ZSets.scoresOfGeoHashBox(geohash, area.steps);
+			splitByShard(scores[0], scores[1], ranges);
+			last_processed = geohash;
+		}
+		
+		// 每个线程要查找的分片
+		List<Integer>[] groups = (List<Integer>[]) new List<?>[owners.length];
+		for (int i = 0; i < ranges.length; ++i) {
+			if (ranges[i] == null) {
+				continue;
+			}
+			int owner = i % owners.length;
+			if (groups[owner] == null) {
+				groups[owner] = new ArrayList<>();
+			}
+			groups[owner].add(i);
+		}
+		
+		CompletableFuture<List<E>> result = null;
+		for (int o = 0; o < groups.length; ++o) {
+			if (groups[o] == null) {
+				continue;
+			}
+			List<Integer> group = groups[o];
+			CompletableFuture<List<E>> f = CompletableFuture.supplyAsync(() -> {
+				List<E> members = new ArrayList<>();
+				for (int i : group) {
+					for (long[] range : ranges[i]) {
+						shards[i].rangeByScore(range[0], range[1], members);
+					}
+				}
+				return members;
+			}, owners[o]);
+			result = result == null ? f : result.thenCombine(f, (a, b) -> {
+				a.addAll(b);
+				return a;
+			});
+		}
+		return result == null ? CompletableFuture.completedFuture(new ArrayList<>()) : result;
+	}
+	
+	/**
+	 * 把score区间按分片边界切开
+	 * @param min
+	 * @param max
+	 * @param ranges
+	 */
+	private void splitByShard(long min, long max, List<long[]>[] ranges) {
+		int first = shardOf(min);
+		int last = Math.min(shardOf(max), shards.length - 1);
+		for (int i = first; i <= last; ++i) {
+			long lo = Math.max(min, (long) i << shift);
+			long hi = Math.min(max, ((long) (i + 1) << shift) - 1);
+			if (ranges[i] == null) {
+				ranges[i] = new ArrayList<>();
+			}
+			ranges[i].add(new long[] {lo, hi});
+		}
+	}
+	
+	/**
+	 * 关闭所有线程，已投递的修改会执行完
+	 */
+	public void shutdown() {
+		for (ExecutorService owner : owners) {
+			owner.shutdown();
+		}
+	}
+	
+	/**
+	 * 元素的路由信息
+	 */
+	private static final class Loc {
+		/** 当前所在分片 */
+		int shard;
+		/** 未完成的跨分片移交，之后的修改要排在它后面 */
+		CompletableFuture<Void> tail;
+		/** 已移除，tail为移除操作 */
+		boolean removed;
+		
+		Loc(int shard) {
+			this.shard = shard;
+		}
+	}
+
+}
@@ -1,10 +1,18 @@
 package com.yiba.core.collect;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Spliterator;
 import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Redis zset主要功能的JAVA实现
@@ -34,9 +42,31 @@ public class ZSet<E extends ZSetEle<K>, K> {
 	 * @return
 	 */
 	public static ZSet<?, ?> addZSet(ZSet<?, ?> zset) {
-		return all.putIfAbsent(zset.key, zset);
+		ZSet<?, ?> old = all.putIfAbsent(zset.key, zset);
+		if (old == null) {
+			zset.changeFeed = keyspaceFeed;
+		}
+		return old;
+	}
+	
+	/** 所有ZSet共用的修改事件流 */
+	private static ZSetChangeFeed keyspaceFeed;
+	
+	/**
+	 * 设置所有ZSet的修改事件流，之后加入的ZSet也会发布到这里
+	 * 必须在写线程调用，为null时关闭。
+	 * @param feed
+	 */
+	public static void setChangeFeed(ZSetChangeFeed feed) {
+		keyspaceFeed = feed;
+		for (ZSet<?, ?> zset : all.values()) {
+			zset.changeFeed = feed;
+		}
 	}
 	
+	/** scan的起始游标，也是结束标志。返回的游标总是大于上一个分值，所以不会与Long.MIN_VALUE冲突。 */
+	public static final long SCAN_BEGIN = Long.MIN_VALUE;
+	
 	/** ZSet的key */
 	private String key;
 	
@@ -51,6 +81,42 @@ public class ZSet<E extends ZSetEle<K>, K> {
 //	private ConcurrentSkipListMap<Long, List<E>> zsl;
 	public TreeMap<Long, List<E>> zsl;
 	
+	/** 多版本索引，开启快照后由写线程同步维护 */
+	private volatile ZSetVersions<E, K> versions;
+	
+	/** 修改回调 */
+	private ZSetListener<E, K> listener;
+	
+	/** georadius的区域查询缓存 */
+	private GeoQueryCache<E> geoCache;
+	
+	/** 修改事件流，只有加入到all中的ZSet才会发布 */
+	private ZSetChangeFeed changeFeed;
+	
+	/** 格子的成员计数，开启后georadius按密度选择格子 */
+	private GeoDensity density;
+	
+	/** 分值桶的排名索引，第一次按排名定位时建立，之后由写线程同步维护 */
+	private ZSetRankIndex ranks;
+	
+	/** 没有会过期的成员时，查找不需要读取时间 */
+	private static final long NO_EXPIRE = Long.MIN_VALUE;
+	
+	/** 没有已到期还未清理的成员 */
+	private static final long[] NO_DUE = new long[0];
+	
+	/** 成员的过期时间 */
+	private final Map<K, Long> expires = new HashMap<>();
+	
+	/** 按过期时间排序的索引，同一时间的成员按设置顺序排列 */
+	private final TreeMap<Long, List<K>> expireIndex = new TreeMap<>();
+	
+	/** 过期使用的时钟，默认为系统毫秒时间 */
+	private LongSupplier clock = System::currentTimeMillis;
+	
+	/** 已清理的过期成员数 */
+	private long expired;
+	
 	public ZSet(String key) {
 		this.key = key;
 		this.dict = new HashMap<>();
@@ -58,6 +124,22 @@ public class ZSet<E extends ZSetEle<K>, K> {
 		this.zsl = new TreeMap<>();
 	}
 	
+	public String getKey() {
+		return key;
+	}
+	
+	public ZSetListener<E, K> getListener() {
+		return listener;
+	}
+	
+	/**
+	 * 设置修改回调，在写线程中同步调用
+	 * @param listener
+	 */
+	public void setListener(ZSetListener<E, K> listener) {
+		this.listener = listener;
+	}
+	
 	/**
 	 * 添加元素
 	 * @param ele
@@ -77,6 +159,8 @@ public class ZSet<E extends ZSetEle<K>, K> {
 	 * @return
 	 */
 	public int add(Long score, E ele, boolean nx, boolean xx, boolean incr) {
+		// 已到期的成员按不存在处理
+		expireIfNeeded(ele.getKey());
 		E de = dict.get(ele.getKey());
 		if (de != null) {
 			if (nx) {
@@ -101,6 +185,7 @@ public class ZSet<E extends ZSetEle<K>, K> {
 			dict.put(ele.getKey(), ele);
 			List<E> list = zsl.computeIfAbsent(score, v -> new ArrayList<>());
 			list.add(ele);
+			onMutate(ele, ZSetChangeFeed.ADD, score, score, true);
 			return 1;
 		}
 		else {
@@ -109,9 +194,79 @@ public class ZSet<E extends ZSetEle<K>, K> {
 	}
 	
 	private void zslUpdateScore(E ele, Long oldScore) {
-		zsl.get(oldScore).remove(ele);
+		List<E> old = zsl.get(oldScore);
+		old.remove(ele);
+		if (old.isEmpty()) {
+			zsl.remove(oldScore);
+		}
 		List<E> list = zsl.computeIfAbsent(ele.getScore(), v -> new ArrayList<>());
 		list.add(ele);
+		onMutate(ele, ZSetChangeFeed.UPDATE, oldScore, ele.getScore(), true);
+	}
+	
+	/**
+	 * 成员加入、分值改变、移除之后，依次同步：快照版本、区域缓存、密度计数、排名索引、过期时间、事件流、回调
+	 * @param ele
+	 * @param type		ZSetChangeFeed.ADD/UPDATE/REMOVE
+	 * @param oldScore	ADD时与newScore相同
+	 * @param newScore	REMOVE时与oldScore相同
+	 * @param notify	是否调用listener，按区间移除时由调用者统一回调
+	 */
+	private void onMutate(E ele, byte type, long oldScore, long newScore, boolean notify) {
+		boolean added = type == ZSetChangeFeed.ADD;
+		boolean removed = type == ZSetChangeFeed.REMOVE;
+		if (versions != null) {
+			if (added) {
+				versions.insert(ele, newScore);
+			}
+			else if (removed) {
+				versions.remove(ele.getKey());
+			}
+			else {
+				versions.update(ele, newScore);
+			}
+		}
+		if (geoCache != null) {
+			if (!added) {
+				geoCache.touch(oldScore);
+			}
+			if (!removed) {
+				geoCache.touch(newScore);
+			}
+		}
+		if (density != null) {
+			if (!added) {
+				density.add(oldScore, -1);
+			}
+			if (!removed) {
+				density.add(newScore, 1);
+			}
+		}
+		if (ranks != null) {
+			if (!added) {
+				ranks.add(oldScore, -1);
+			}
+			if (!removed) {
+				ranks.add(newScore, 1);
+			}
+		}
+		if (removed && !expires.isEmpty()) {
+			clearExpire(ele.getKey());
+		}
+		if (changeFeed != null) {
+			changeFeed.publish(key, ele.getKey(), type, oldScore, newScore);
+		}
+		if (listener != null && notify) {
+			if (added) {
+				listener.onAdd(this, ele, newScore);
+			}
+			else if (removed) {
+				listener.onRemove(this, ele, oldScore);
+			}
+			else {
+				listener.onUpdate(this, ele, oldScore, newScore);
+			}
+		}
 	}
 	
 	/**
@@ -133,21 +288,183 @@ public class ZSet<E extends ZSetEle<K>, K> {
 			return list;
 		}
 		
+		long now = expireNow();
 		List<E> mins = zsl.get(min);
 		if (mins != null) {
-			list.addAll(mins);
+			addAlive(list, mins, now);
 		}
 		Long score = zsl.higherKey(min);
 		while (score != null && score <= max) {
 			List<E> ret = zsl.get(score);
 			if (ret != null) {
-				list.addAll(ret);
+				addAlive(list, ret, now);
 			}
 			score = zsl.higherKey(score);
 		}
 		return list;
 	}
 	
+	/**
+	 * 通过score区间分页获取，LIMIT offset count
+	 * 通过排名索引直接定位到第offset个元素，复杂度O(log n + count)。
+	 * 已到期还未清理的成员不移除，定位时按排名跳过，遍历时过滤，额外的代价与等待清理的个数成正比。
+	 * @param min
+	 * @param max
+	 * @param offset
+	 * @param count		负数表示offset之后的全部
+	 * @return
+	 */
+	public List<E> rangeByScore(long min, long max, int offset, int count) {
+		if (min > max || offset < 0 || count == 0) {
+			return new ArrayList<>();
+		}
+		
+		long now = expireNow();
+		ZSetRankIndex index = rankIndex();
+		long from = skipDue(dueRanks(now), index.countLess(min), offset);
+		long to = index.countLessOrEqual(max);
+		if (from >= to) {
+			return new ArrayList<>();
+		}
+		long remain = count < 0 ? to - from : Math.min(count, to - from);
+		List<E> list = new ArrayList<>((int) remain);
+		int[] pos = new int[1];
+		long score = index.select(from, pos);
+		int i = pos[0];
+		long rank = from;
+		for (List<E> bucket : zsl.tailMap(score, true).values()) {
+			for (; i < bucket.size(); ++i) {
+				if (rank++ >= to) {
+					return list;
+				}
+				E ele = bucket.get(i);
+				if (isExpired(ele, now)) {
+					continue;
+				}
+				list.add(ele);
+				if (--remain == 0) {
+					return list;
+				}
+			}
+			i = 0;
+		}
+		return list;
+	}
+	
+	/**
+	 * 通过score区间倒序获取，ZREVRANGEBYSCORE
+	 * @param max
+	 * @param min
+	 * @return
+	 */
+	public List<E> revRangeByScore(long max, long min) {
+		return revRangeByScore(max, min, 0, -1);
+	}
+	
+	/**
+	 * 通过score区间倒序分页获取，LIMIT offset count
+	 * @param max
+	 * @param min
+	 * @param offset
+	 * @param count		负数表示offset之后的全部
+	 * @return
+	 */
+	public List<E> revRangeByScore(long max, long min, int offset, int count) {
+		if (min > max || offset < 0 || count == 0) {
+			return new ArrayList<>();
+		}
+		
+		long now = expireNow();
+		ZSetRankIndex index = rankIndex();
+		long first = index.countLess(min);
+		long last = skipDueReverse(dueRanks(now), index.countLessOrEqual(max) - 1, offset);
+		if (last < first) {
+			return new ArrayList<>();
+		}
+		long remain = count < 0 ? last - first + 1 : Math.min(count, last - first + 1);
+		List<E> list = new ArrayList<>((int) remain);
+		int[] pos = new int[1];
+		long score = index.select(last, pos);
+		int i = pos[0];
+		long rank = last;
+		for (List<E> bucket : zsl.headMap(score, true).descendingMap().values()) {
+			if (i < 0) {
+				i = bucket.size() - 1;
+			}
+			for (; i >= 0; --i) {
+				if (rank-- < first) {
+					return list;
+				}
+				E ele = bucket.get(i);
+				if (isExpired(ele, now)) {
+					continue;
+				}
+				list.add(ele);
+				if (--remain == 0) {
+					return list;
+				}
+			}
+		}
+		return list;
+	}
+	
+	/**
+	 * 排名索引，没有时用当前内容建立
+	 * @return
+	 */
+	private ZSetRankIndex rankIndex() {
+		if (ranks == null) {
+			ranks = new ZSetRankIndex(zsl);
+		}
+		return ranks;
+	}
+	
+	/**
+	 * 分批遍历整个集合，ZSCAN
+	 * 游标是下一次开始的分值，不在ZSet中保存任何状态。相同分值的元素总是在同一批返回，
+	 * 所以遍历期间集合被修改时，从开始到结束一直存在的元素至少会返回一次。
+	 * 使用{@link #SCAN_BEGIN}开始，返回{@link #SCAN_BEGIN}表示遍历结束。
+	 * 一个分值桶不会拆开，所以一批可能超过count，最多多出最后一个桶的大小。
+	 * @param cursor
+	 * @param count		每批大致的个数，小于1按1处理，每批至少返回一个分值桶
+	 * @param members	本批元素加入该列表
+	 * @return 下一次的游标
+	 */
+	public long scan(long cursor, int count, List<E> members) {
+		if (count < 1) {
+			count = 1;
+		}
+		int added = 0;
+		Long score = zsl.ceilingKey(cursor);
+		while (score != null) {
+			if (added >= count) {
+				return score;
+			}
+			List<E> bucket = zsl.get(score);
+			members.addAll(bucket);
+			added += bucket.size();
+			score = zsl.higherKey(score);
+		}
+		return SCAN_BEGIN;
+	}
+	
+	/**
+	 * 通过score区间获取惰性的Stream，不生成中间列表
+	 * 可以使用parallel()，Spliterator通过排名索引按元素个数二分拆分，分值聚集时两边也一样多。
+	 * 遍历期间不能修改ZSet，并行时写线程需要等待Stream结束；需要边写边读时使用{@link #snapshot()}。
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public Stream<E> streamByScore(long min, long max) {
+		if (min > max) {
+			return Stream.empty();
+		}
+		// 在调用线程建立排名索引，拆分时只读
+		ZSetRankIndex index = rankIndex();
+		return StreamSupport.stream(new RankSpliterator<>(zsl, index, index.countLess(min), index.countLessOrEqual(max)), false);
+	}
+	
 	/**
 	 * 移除
 	 * @param id
@@ -158,11 +475,475 @@ public class ZSet<E extends ZSetEle<K>, K> {
 		if (ele == null) {
 			return true;
 		}
+		boolean ret = true;
 		List<E> list = zsl.get(ele.getScore());
-		if (list == null) {
+		if (list != null) {
+			ret = list.remove(ele);
+			if (list.isEmpty()) {
+				zsl.remove(ele.getScore());
+			}
+		}
+		// 从zsl移除之后再通知，回调中看到的是移除后的集合
+		onMutate(ele, ZSetChangeFeed.REMOVE, ele.getScore(), ele.getScore(), true);
+		return ret;
+	}
+	
+	/**
+	 * 移除score区间内的所有元素，ZREMRANGEBYSCORE
+	 * 整段分值从zsl中一次清除，dict批量删除。区间内已到期还未清理的成员一起清理，不计入返回值。
+	 * @param min
+	 * @param max
+	 * @return 移除的未过期成员个数
+	 */
+	public int removeRangeByScore(long min, long max) {
+		if (min > max) {
+			return 0;
+		}
+		if (listener != null) {
+			listener.onRemoveRangeByScore(this, min, max);
+		}
+		
+		long now = expireNow();
+		NavigableMap<Long, List<E>> range = zsl.subMap(min, true, max, true);
+		int removed = 0;
+		for (List<E> list : range.values()) {
+			for (int i = 0; i < list.size(); ++i) {
+				E ele = list.get(i);
+				if (isExpired(ele, now)) {
+					expired++;
+				}
+				else {
+					removed++;
+				}
+				dictDelete(ele);
+			}
+		}
+		range.clear();
+		return removed;
+	}
+	
+	/**
+	 * 移除排名区间内的所有元素，ZREMRANGEBYRANK
+	 * 排名从0开始，闭区间，负数表示从末尾倒数。排名按未过期的成员计算，与分页获取一致。
+	 * 实际移除的是zsl中从第start个到第stop个未过期成员之间的一段，夹在中间的已到期成员一起清理；
+	 * 回调收到的是这一段在zsl中的排名，副本不知道过期时间，按它移除的正是同一段。
+	 * @param start
+	 * @param stop
+	 * @return 移除的未过期成员个数
+	 */
+	public int removeRangeByRank(long start, long stop) {
+		long[] due = dueRanks(expireNow());
+		/* Sanitize indexes. */
+		long llen = dict.size() - due.length;
+		if (start < 0) start = llen + start;
+		if (stop < 0) stop = llen + stop;
+		if (start < 0) start = 0;
+		if (start > stop || start >= llen) {
+			return 0;
+		}
+		if (stop >= llen) stop = llen - 1;
+		int alive = (int) (stop - start + 1);
+		start = skipDue(due, 0, start);
+		stop = skipDue(due, 0, stop);
+		if (listener != null) {
+			listener.onRemoveRangeByRank(this, start, stop);
+		}
+		
+		int removed = 0;
+		long rank = 0;
+		Iterator<List<E>> it = zsl.values().iterator();
+		while (it.hasNext() && rank <= stop) {
+			List<E> list = it.next();
+			int size = list.size();
+			if (rank + size <= start) {
+				rank += size;
+				if (size == 0) {
+					it.remove();
+				}
+				continue;
+			}
+			int from = (int) Math.max(0, start - rank);
+			int to = (int) Math.min(size, stop - rank + 1);
+			List<E> sub = list.subList(from, to);
+			for (int i = 0; i < sub.size(); ++i) {
+				dictDelete(sub.get(i));
+			}
+			removed += to - from;
+			if (from == 0 && to == size) {
+				it.remove();
+			}
+			else {
+				sub.clear();
+			}
+			rank += size;
+		}
+		expired += removed - alive;
+		return alive;
+	}
+	
+	/**
+	 * 只从dict中删除，zsl由调用者处理
+	 * @param ele
+	 */
+	private void dictDelete(E ele) {
+		dict.remove(ele.getKey());
+		onMutate(ele, ZSetChangeFeed.REMOVE, ele.getScore(), ele.getScore(), false);
+	}
+	
+	//-=-=-=-=-=-=-=-=-=-=-=-=过期-=-=-=-=-=-=-=-=-=-=-=-=//
+	// 过期的成员在rangeByScore、georadius等查找中立即隐藏，由写线程每帧调用expireCycle按时间预算逐步移除。
+	// size、分页获取和按排名移除把已到期还未清理的成员按排名跳过，不在读取中清理，代价与等待清理的个数成正比。
+	// 按成员的操作（add、get、expire、persist、ttl）遇到已到期的成员时先移除，再按不存在处理，与Redis的expireIfNeeded相同。
+	// 移除走remove，回调、事件流、快照等都会收到。清理之前，dict、scan、streamByScore和快照中仍然能看到过期的成员。
+	
+	/**
+	 * 添加元素，ttlMillis毫秒后过期
+	 * @param ele
+	 * @param ttlMillis
+	 * @return
+	 */
+	public int add(E ele, long ttlMillis) {
+		int ret = add(ele);
+		if (ret > 0) {
+			expire(ele.getKey(), ttlMillis);
+		}
+		return ret;
+	}
+	
+	/**
+	 * 设置成员ttlMillis毫秒后过期，已有的过期时间被覆盖
+	 * @param id
+	 * @param ttlMillis	不大于0时立即移除
+	 * @return 成员不存在或已过期返回false
+	 */
+	public boolean expire(K id, long ttlMillis) {
+		expireIfNeeded(id);
+		if (!dict.containsKey(id)) {
+			return false;
+		}
+		if (ttlMillis <= 0) {
+			remove(id);
 			return true;
 		}
-		return list.remove(ele);
+		clearExpire(id);
+		long when = clock.getAsLong() + ttlMillis;
+		expires.put(id, when);
+		expireIndex.computeIfAbsent(when, v -> new ArrayList<>()).add(id);
+		return true;
+	}
+	
+	/**
+	 * 取消成员的过期时间
+	 * @param id
+	 * @return 原来没有过期时间或已过期返回false
+	 */
+	public boolean persist(K id) {
+		if (expireIfNeeded(id)) {
+			return false;
+		}
+		return clearExpire(id);
+	}
+	
+	/**
+	 * 成员剩余的存活时间
+	 * @param id
+	 * @return 毫秒，不存在或已过期返回-2，没有过期时间返回-1
+	 */
+	public long ttl(K id) {
+		expireIfNeeded(id);
+		if (!dict.containsKey(id)) {
+			return -2;
+		}
+		Long when = expires.get(id);
+		if (when == null) {
+			return -1;
+		}
+		return Math.max(0, when - clock.getAsLong());
+	}
+	
+	/**
+	 * 查找成员，已过期的先移除
+	 * @param id
+	 * @return 不存在或已过期返回null
+	 */
+	public E get(K id) {
+		expireIfNeeded(id);
+		return dict.get(id);
+	}
+	
+	/**
+	 * 未过期的成员数，已到期还未清理的不计入，也不在这里清理
+	 * @return
+	 */
+	public int size() {
+		long now = expireNow();
+		if (now == NO_EXPIRE) {
+			return dict.size();
+		}
+		int due = 0;
+		for (List<K> ids : expireIndex.headMap(now, true).values()) {
+			due += ids.size();
+		}
+		return dict.size() - due;
+	}
+	
+	/**
+	 * 写线程每帧调用，按过期时间从早到晚移除已过期的成员，用完时间预算后停止，剩下的下一帧继续
+	 * @param budgetNanos	时间预算
+	 * @return 本次移除的个数
+	 */
+	public int expireCycle(long budgetNanos) {
+		if (expireIndex.isEmpty()) {
+			return 0;
+		}
+		return expireUntil(clock.getAsLong(), budgetNanos);
+	}
+	
+	private int expireUntil(long now, long budgetNanos) {
+		long start = System.nanoTime();
+		int removed = 0;
+		Map.Entry<Long, List<K>> first;
+		while ((first = expireIndex.firstEntry()) != null && first.getKey() <= now) {
+			List<K> ids = first.getValue();
+			// 从末尾移除，clearExpire从末尾查找
+			K id = ids.get(ids.size() - 1);
+			remove(id);
+			clearExpire(id);
+			removed++;
+			// 每16个检查一次时间
+			if ((removed & 15) == 0 && System.nanoTime() - start >= budgetNanos) {
+				break;
+			}
+		}
+		expired += removed;
+		return removed;
+	}
+	
+	/**
+	 * 已清理的过期成员数
+	 * @return
+	 */
+	public long getExpired() {
+		return expired;
+	}
+	
+	/**
+	 * 等待清理的成员数，包括还没到时间的
+	 * @return
+	 */
+	public int getExpires() {
+		return expires.size();
+	}
+	
+	/**
+	 * 设置过期使用的时钟，例如帧时间
+	 * @param clock	毫秒
+	 */
+	public void setClock(LongSupplier clock) {
+		this.clock = clock;
+	}
+	
+	/**
+	 * 成员已到期时立即移除，不等expireCycle
+	 * @param id
+	 * @return 是否移除
+	 */
+	private boolean expireIfNeeded(K id) {
+		if (expires.isEmpty()) {
+			return false;
+		}
+		Long when = expires.get(id);
+		if (when == null || when > clock.getAsLong()) {
+			return false;
+		}
+		remove(id);
+		expired++;
+		return true;
+	}
+	
+	private boolean clearExpire(K id) {
+		Long when = expires.remove(id);
+		if (when == null) {
+			return false;
+		}
+		List<K> ids = expireIndex.get(when);
+		ids.remove(ids.lastIndexOf(id));
+		if (ids.isEmpty()) {
+			expireIndex.remove(when);
+		}
+		return true;
+	}
+	
+	/**
+	 * 查找时判断过期用的当前时间，没有会过期的成员时返回NO_EXPIRE
+	 */
+	private long expireNow() {
+		return expires.isEmpty() ? NO_EXPIRE : clock.getAsLong();
+	}
+	
+	private boolean isExpired(E ele, long now) {
+		if (now == NO_EXPIRE) {
+			return false;
+		}
+		Long when = expires.get(ele.getKey());
+		return when != null && when <= now;
+	}
+	
+	/**
+	 * 把src中未过期的成员加入dst
+	 */
+	private void addAlive(List<E> dst, List<E> src, long now) {
+		if (now == NO_EXPIRE) {
+			dst.addAll(src);
+			return;
+		}
+		for (int i = 0; i < src.size(); ++i) {
+			E ele = src.get(i);
+			if (!isExpired(ele, now)) {
+				dst.add(ele);
+			}
+		}
+	}
+	
+	/**
+	 * 已到期还未清理的成员在zsl中的排名，升序
+	 * 只遍历过期索引中已到期的部分，代价与等待清理的个数成正比，与集合大小无关。
+	 */
+	private long[] dueRanks(long now) {
+		if (now == NO_EXPIRE) {
+			return NO_DUE;
+		}
+		NavigableMap<Long, List<K>> due = expireIndex.headMap(now, true);
+		if (due.isEmpty()) {
+			return NO_DUE;
+		}
+		int n = 0;
+		for (List<K> ids : due.values()) {
+			n += ids.size();
+		}
+		ZSetRankIndex index = rankIndex();
+		long[] ranks = new long[n];
+		int i = 0;
+		for (List<K> ids : due.values()) {
+			for (int j = 0; j < ids.size(); ++j) {
+				E ele = dict.get(ids.get(j));
+				ranks[i++] = index.countLess(ele.getScore()) + zsl.get(ele.getScore()).indexOf(ele);
+			}
+		}
+		Arrays.sort(ranks);
+		return ranks;
+	}
+	
+	/**
+	 * 从zsl中排名base开始，跳过已到期的成员，第offset个未过期成员的排名
+	 * @param due	dueRanks的结果
+	 */
+	private static long skipDue(long[] due, long base, long offset) {
+		long rank = base + offset;
+		for (long r : due) {
+			if (r < base) {
+				continue;
+			}
+			if (r > rank) {
+				break;
+			}
+			rank++;
+		}
+		return rank;
+	}
+	
+	/**
+	 * 从zsl中排名top开始倒数，跳过已到期的成员，第offset个未过期成员的排名
+	 * @param due	dueRanks的结果
+	 */
+	private static long skipDueReverse(long[] due, long top, long offset) {
+		long rank = top - offset;
+		for (int i = due.length - 1; i >= 0; --i) {
+			if (due[i] > top) {
+				continue;
+			}
+			if (due[i] < rank) {
+				break;
+			}
+			rank--;
+		}
+		return rank;
+	}
+	
+	/**
+	 * 开启快照，用当前内容建立多版本索引
+	 * 开启后每次修改额外复制O(log n)个索引节点。必须在写线程调用。
+	 */
+	public void enableSnapshot() {
+		if (versions != null) {
+			return;
+		}
+		ZSetVersions<E, K> v = new ZSetVersions<>();
+		for (Map.Entry<Long, List<E>> entry : zsl.entrySet()) {
+			for (E ele : entry.getValue()) {
+				v.insert(ele, entry.getKey());
+			}
+		}
+		this.versions = v;
+	}
+	
+	/**
+	 * 当前时刻的只读快照，可以交给其他线程查询，不会阻塞写线程
+	 * @return
+	 */
+	public ZSetSnapshot<E, K> snapshot() {
+		ZSetVersions<E, K> v = versions;
+		if (v == null) {
+			throw new IllegalStateException("snapshot not enabled, ZSet: " + key);
+		}
+		return v.snapshot();
+	}
+	
+	/**
+	 * 开启georadius的区域查询缓存
+	 * 同一帧内大量相近的查询、以及没有变化的区域，可以直接使用缓存的结果，不再遍历zsl。
+	 * @param maxEntries	最多缓存的区域个数
+	 * @param levels		版本号的层数，见{@link GeoQueryCache}
+	 * @throws IllegalStateException	已开启按密度选择格子，见{@link #enableGeoDensity(int)}
+	 */
+	public void enableGeoCache(int maxEntries, int levels) {
+		if (density != null) {
+			throw new IllegalStateException("geo density is enabled, georadius does not use the cache: " + key);
+		}
+		this.geoCache = new GeoQueryCache<>(maxEntries, levels);
+	}
+	
+	/**
+	 * 区域查询缓存，未开启为null
+	 * @return
+	 */
+	public GeoQueryCache<E> getGeoCache() {
+		return geoCache;
+	}
+	
+	/**
+	 * 开启按密度选择格子的georadius，用当前内容建立计数
+	 * 按密度选择的格子大小不固定，区域查询缓存的结果无法复用，两者不能同时开启。
+	 * @param levels	计数的层数，见{@link GeoDensity}
+	 * @throws IllegalStateException	已开启区域查询缓存
+	 */
+	public void enableGeoDensity(int levels) {
+		if (geoCache != null) {
+			throw new IllegalStateException("geo cache is enabled, georadius by density does not use it: " + key);
+		}
+		GeoDensity d = new GeoDensity(levels);
+		for (Map.Entry<Long, List<E>> entry : zsl.entrySet()) {
+			d.add(entry.getKey(), entry.getValue().size());
+		}
+		this.density = d;
+	}
+	
+	/**
+	 * 格子的成员计数和查找统计，未开启为null
+	 * @return
+	 */
+	public GeoDensity getGeoDensity() {
+		return density;
 	}
 	
 	/**
@@ -173,6 +954,9 @@ public class ZSet<E extends ZSetEle<K>, K> {
 	 * @param radius
 	 */
 	public List<E> georadius(double x, double y, double radius) {
+		if (density != null) {
+			return georadiusByDensity(x, y, radius);
+		}
 		// 通过中心和半径，获取要搜索的所有区域
 		ZSets.GeoArea area = ZSets.geohashGetAreasByRadius(x, y, radius);
 		if (ZSets.DEBUG_MSG) {
@@ -207,6 +991,69 @@ public class ZSet<E extends ZSetEle<K>, K> {
 		return members;
 	}
 	
+	/**
+	 * 按密度选择格子查找，分值所在的最细格子与圆不相交的成员直接过滤掉
+	 */
+	private List<E> georadiusByDensity(double x, double y, double radius) {
+		List<long[]> ranges = ZSets.geohashRangesByDensity(x, y, radius, density);
+		List<E> members = new ArrayList<>();
+		for (long[] range : ranges) {
+			rangeByScore(range[0], range[1], members);
+		}
+		int candidates = members.size();
+		members.removeIf(e -> !ZSets.scoreInRadius(e.getScore(), x, y, radius));
+		density.record(ranges.size(), candidates, candidates - members.size());
+		return members;
+	}
+	
+	/**
+	 * 查找附近的元素，分值为{@link ZSets#calcScoreHilbert(double, double)}编码
+	 * 找到所有可能的，需要在外层再判断实际距离和radius是否满足
+	 * 相邻格子的score区间已合并，不使用区域查询缓存。
+	 * @param x
+	 * @param y
+	 * @param radius
+	 */
+	public List<E> georadiusHilbert(double x, double y, double radius) {
+		List<E> members = new ArrayList<>();
+		for (long[] range : ZSets.hilbertRangesByRadius(x, y, radius)) {
+			rangeByScore(range[0], range[1], members);
+		}
+		return members;
+	}
+	
+	/**
+	 * 球形查找，分值为{@link ZSets#calcScore3D(double, double, double)}编码
+	 * 按分值所在的最细格子过滤，高度不在范围内的不会返回，误差不超过一个格子。
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param radius
+	 * @return
+	 */
+	public List<E> geoSphere(double x, double y, double z, double radius) {
+		List<E> members = new ArrayList<>();
+		for (long[] range : ZSets.geoSphereRanges(x, y, z, radius)) {
+			rangeByScore(range[0], range[1], members);
+		}
+		members.removeIf(e -> !ZSets.scoreInSphere3D(e.getScore(), x, y, z, radius));
+		return members;
+	}
+	
+	/**
+	 * 长方体查找，分值为{@link ZSets#calcScore3D(double, double, double)}编码
+	 * @param bounds	[x min, x max, y min, y max, z min, z max]
+	 * @return
+	 */
+	public List<E> geoBox3D(double[] bounds) {
+		List<E> members = new ArrayList<>();
+		for (long[] range : ZSets.geoBox3DRanges(bounds)) {
+			rangeByScore(range[0], range[1], members);
+		}
+		members.removeIf(e -> !ZSets.scoreInBox3D(e.getScore(), bounds));
+		return members;
+	}
+	
 	/**
 	 * 获得该区域中，在zset内的成员
 	 * @param geohash
@@ -216,7 +1063,19 @@ public class ZSet<E extends ZSetEle<K>, K> {
 	private void membersOfGeoHashBox(long geohash, int step, List<E> members) {
 		// 获得区域hash对应的zset score的最小值和最大值
 		long[] scores = ZSets.scoresOfGeoHashBox(geohash, step);
-		members = rangeByScore(scores[0], scores[1], members);
+		if (geoCache == null) {
+			members = rangeByScore(scores[0], scores[1], members);
+			return;
+		}
+		
+		List<E> cached = geoCache.get(geohash, step, scores);
+		if (cached == null) {
+			// 新建的列表直接交给缓存，只在复制到members时复制一次
+			cached = rangeByScore(scores[0], scores[1]);
+			geoCache.put(geohash, step, scores, cached);
+		}
+		// 缓存之后才过期的成员不会修改版本号，这里再过滤一次
+		addAlive(members, cached, expireNow());
 	}
 	
 	/**
@@ -233,4 +1092,100 @@ public class ZSet<E extends ZSetEle<K>, K> {
 		LogCore.temp.debug("area.y_max: " + area[3]);
 	}
 
+	/**
+	 * 按排名区间拆分的Spliterator
+	 * 拆分时取排名区间的中点，两边的元素个数相差不超过1，大小是精确的。
+	 */
+	private static class RankSpliterator<E> implements Spliterator<E> {
+		
+		private final NavigableMap<Long, List<E>> zsl;
+		private final ZSetRankIndex index;
+		/** 排名区间，[from, to) */
+		private long from;
+		private final long to;
+		
+		/** 遍历开始后不再拆分 */
+		private Iterator<List<E>> buckets;
+		private List<E> bucket;
+		private int pos;
+		
+		RankSpliterator(NavigableMap<Long, List<E>> zsl, ZSetRankIndex index, long from, long to) {
+			this.zsl = zsl;
+			this.index = index;
+			this.from = from;
+			this.to = to;
+		}
+		
+		/**
+		 * 定位到排名from所在的分值桶
+		 */
+		private void seek() {
+			int[] p = new int[1];
+			long score = index.select(from, p);
+			buckets = zsl.tailMap(score, true).values().iterator();
+			bucket = buckets.next();
+			pos = p[0];
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super E> action) {
+			if (from >= to) {
+				return false;
+			}
+			if (buckets == null) {
+				seek();
+			}
+			while (pos >= bucket.size()) {
+				bucket = buckets.next();
+				pos = 0;
+			}
+			from++;
+			action.accept(bucket.get(pos++));
+			return true;
+		}
+		
+		@Override
+		public void forEachRemaining(Consumer<? super E> action) {
+			if (from >= to) {
+				return;
+			}
+			if (buckets == null) {
+				seek();
+			}
+			while (true) {
+				int n = (int) Math.min(bucket.size() - pos, to - from);
+				for (int i = 0; i < n; ++i) {
+					action.accept(bucket.get(pos++));
+				}
+				from += n;
+				if (from >= to) {
+					return;
+				}
+				bucket = buckets.next();
+				pos = 0;
+			}
+		}
+		
+		@Override
+		public Spliterator<E> trySplit() {
+			long mid = (from + to) >>> 1;
+			if (buckets != null || mid <= from) {
+				return null;
+			}
+			RankSpliterator<E> prefix = new RankSpliterator<>(zsl, index, from, mid);
+			this.from = mid;
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return to - from;
+		}
+		
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL | SIZED | SUBSIZED;
+		}
+	}
+
 }
@@ -0,0 +1,328 @@
+package com.yiba.core.collect;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ZSet修改的事件流
+ * 预分配的环形缓冲区，记录按列保存在数组中，发布和消费都不创建对象。
+ * 只允许一个写线程（场景线程）发布；每个{@link Consumer}在自己的线程中批量拉取，互不影响。
+ * 缓冲区满时写线程按构造时的设置等待最慢的消费者，或丢弃记录并计数。
+ * 丢弃的记录不占用序号，丢弃后发布的第一条记录带上丢弃的条数，消费者读到它之前先收到{@link Handler#onOverrun(long, long)}，
+ * 之后需要重新全量同步。
+ * 消费过的槽位在被覆盖前仍然引用着成员的key。
+ * @author U-Demon
+ */
+public class ZSetChangeFeed {
+	
+	public static final byte ADD = 1;
+	public static final byte UPDATE = 2;
+	public static final byte REMOVE = 3;
+	
+	private final int mask;
+	
+	/* 记录，按列保存 */
+	private final String[] keys;
+	private final Object[] members;
+	private final byte[] types;
+	private final long[] oldScores;
+	private final long[] newScores;
+	/** 该记录之前被丢弃的记录数，通常为0 */
+	private final long[] gaps;
+	
+	/** 缓冲区满时是否等待消费者，否则丢弃 */
+	private final boolean blockWhenFull;
+	
+	/** 已发布的最后一条记录的序号 */
+	private final Sequence cursor = new Sequence(-1);
+	
+	/** 写线程：下一条记录的序号 */
+	private long next;
+	
+	/** 写线程：上次计算的最慢消费者序号 */
+	private long cachedGating = -1;
+	
+	/** 写线程：上一条发布的记录之后被丢弃的记录数 */
+	private long pendingGap;
+	
+	/** 所有消费者的序号，写时复制 */
+	private volatile Sequence[] gating = new Sequence[0];
+	
+	/* 统计，只有写线程修改 */
+	private volatile long dropped;
+	private volatile long waits;
+	private volatile long maxLag;
+	
+	/**
+	 * @param size				必须为2的幂
+	 * @param blockWhenFull		缓冲区满时等待消费者，还是丢弃记录
+	 */
+	public ZSetChangeFeed(int size, boolean blockWhenFull) {
+		if (size <= 0 || (size & (size - 1)) != 0) {
+			throw new IllegalArgumentException("feed size must be a power of two: " + size);
+		}
+		this.mask = size - 1;
+		this.keys = new String[size];
+		this.members = new Object[size];
+		this.types = new byte[size];
+		this.oldScores = new long[size];
+		this.newScores = new long[size];
+		this.gaps = new long[size];
+		this.blockWhenFull = blockWhenFull;
+	}
+	
+	public int size() {
+		return mask + 1;
+	}
+	
+	/**
+	 * 写线程：发布一条记录
+	 * @param key		ZSet的key
+	 * @param member	成员的key
+	 * @param type		ADD/UPDATE/REMOVE
+	 * @param oldScore	ADD时与newScore相同
+	 * @param newScore	REMOVE时与oldScore相同
+	 * @return 缓冲区满且不等待时返回false
+	 */
+	public boolean publish(String key, Object member, byte type, long oldScore, long newScore) {
+		long seq = next;
+		long wrapPoint = seq - mask - 1;
+		if (wrapPoint > cachedGating) {
+			cachedGating = minGating(seq - 1);
+			maxLag = Math.max(maxLag, seq - 1 - cachedGating);
+			while (wrapPoint > cachedGating) {
+				if (!blockWhenFull) {
+					dropped++;
+					pendingGap++;
+					return false;
+				}
+				waits++;
+				LockSupport.parkNanos(1000);
+				cachedGating = minGating(seq - 1);
+			}
+		}
+		
+		int i = (int) (seq & mask);
+		keys[i] = key;
+		members[i] = member;
+		types[i] = type;
+		oldScores[i] = oldScore;
+		newScores[i] = newScore;
+		gaps[i] = pendingGap;
+		pendingGap = 0;
+		next = seq + 1;
+		cursor.lazySet(seq);
+		return true;
+	}
+	
+	private long minGating(long min) {
+		for (Sequence s : gating) {
+			min = Math.min(min, s.get());
+		}
+		return min;
+	}
+	
+	/**
+	 * 新的消费者，从下一条发布的记录开始消费
+	 * @return
+	 */
+	public synchronized Consumer newConsumer() {
+		Consumer consumer = new Consumer(cursor.get());
+		Sequence[] g = Arrays.copyOf(gating, gating.length + 1);
+		g[g.length - 1] = consumer.sequence;
+		gating = g;
+		return consumer;
+	}
+	
+	private synchronized void removeConsumer(Consumer consumer) {
+		Sequence[] g = gating;
+		for (int i = 0; i < g.length; ++i) {
+			if (g[i] == consumer.sequence) {
+				Sequence[] ng = new Sequence[g.length - 1];
+				System.arraycopy(g, 0, ng, 0, i);
+				System.arraycopy(g, i + 1, ng, i, g.length - i - 1);
+				gating = ng;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * 已发布的记录数
+	 * @return
+	 */
+	public long getPublished() {
+		return cursor.get() + 1;
+	}
+	
+	/**
+	 * 缓冲区满被丢弃的记录数
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+	
+	/**
+	 * 缓冲区满时写线程等待的次数
+	 * @return
+	 */
+	public long getWaits() {
+		return waits;
+	}
+	
+	/**
+	 * 写线程观察到的最慢消费者的最大积压，只在接近写满时更新
+	 * @return
+	 */
+	public long getMaxLag() {
+		return maxLag;
+	}
+	
+	/**
+	 * 当前最慢消费者的积压记录数
+	 * @return
+	 */
+	public long getLag() {
+		long c = cursor.get();
+		return c - minGating(c);
+	}
+	
+	/**
+	 * 记录的处理
+	 */
+	public interface Handler {
+		
+		/**
+		 * @param sequence	记录的序号，连续递增
+		 * @param key		ZSet的key
+		 * @param member	成员的key
+		 * @param type		ADD/UPDATE/REMOVE
+		 * @param oldScore
+		 * @param newScore
+		 */
+		void onChange(long sequence, String key, Object member, byte type, long oldScore, long newScore);
+		
+		/**
+		 * 丢弃模式下，序号为sequence的记录之前有记录被丢弃，在该记录的onChange之前调用
+		 * 消费者维护的状态已经不完整，需要重新全量同步；默认只计入{@link Consumer#getLost()}。
+		 * @param sequence	丢弃后发布的第一条记录的序号
+		 * @param lost		丢弃的记录数
+		 */
+		default void onOverrun(long sequence, long lost) {
+		}
+	}
+	
+	/**
+	 * 消费者，只允许一个线程使用
+	 */
+	public class Consumer {
+		
+		/** 已消费的最后一条记录的序号 */
+		private final Sequence sequence;
+		
+		/** 消费过程中遇到的被丢弃的记录数，只有消费线程访问 */
+		private long lost;
+		
+		private Consumer(long start) {
+			this.sequence = new Sequence(start);
+		}
+		
+		/**
+		 * 拉取已发布的记录
+		 * @param handler
+		 * @param maxBatch	最多处理的记录数
+		 * @return 处理的记录数
+		 */
+		public int poll(Handler handler, int maxBatch) {
+			long from = sequence.get() + 1;
+			long to = Math.min(cursor.get(), from + maxBatch - 1);
+			for (long seq = from; seq <= to; ++seq) {
+				int i = (int) (seq & mask);
+				long gap = gaps[i];
+				if (gap != 0) {
+					lost += gap;
+					handler.onOverrun(seq, gap);
+				}
+				handler.onChange(seq, keys[i], members[i], types[i], oldScores[i], newScores[i]);
+			}
+			if (to >= from) {
+				// 处理完后才允许写线程覆盖这些槽位
+				sequence.lazySet(to);
+				return (int) (to - from + 1);
+			}
+			return 0;
+		}
+		
+		/**
+		 * 还未消费的记录数
+		 * @return
+		 */
+		public long lag() {
+			return cursor.get() - sequence.get();
+		}
+		
+		/**
+		 * 消费过程中遇到的被丢弃的记录数，不为0时消费者的状态已不完整
+		 * @return
+		 */
+		public long getLost() {
+			return lost;
+		}
+		
+		/**
+		 * 不再消费，写线程不再等待它
+		 */
+		public void close() {
+			removeConsumer(this);
+		}
+	}
+	
+	/* 序号前后各填充56字节，父类的字段排在子类之前，value独占一个缓存行 */
+	
+	@SuppressWarnings("unused")
+	private static class LhsPadding {
+		protected long p1, p2, p3, p4, p5, p6, p7;
+	}
+	
+	private static class Value extends LhsPadding {
+		protected volatile long value;
+	}
+	
+	/**
+	 * 填充到独占缓存行的序号，避免写线程和消费者之间、以及与相邻对象的伪共享
+	 */
+	@SuppressWarnings("unused")
+	private static final class Sequence extends Value {
+		
+		private static final VarHandle VALUE;
+		static {
+			try {
+				VALUE = MethodHandles.lookup().findVarHandle(Value.class, "value", long.class);
+			} catch (ReflectiveOperationException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+		
+		protected long p9, p10, p11, p12, p13, p14, p15;
+		
+		Sequence(long initial) {
+			this.value = initial;
+		}
+		
+		long get() {
+			return value;
+		}
+		
+		/**
+		 * 有序写入，不需要StoreLoad屏障
+		 * @param v
+		 */
+		void lazySet(long v) {
+			VALUE.setRelease(this, v);
+		}
+	}
+
+}
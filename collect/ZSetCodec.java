@@ -0,0 +1,23 @@
+package com.yiba.core.collect;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * ZSet元素的序列化
+ * 分值由调用者单独读写，这里只处理元素的其他字段。
+ * writeElement可能在其他线程中调用（全量同步时），只能读取元素中不会改变的字段。
+ * @author U-Demon
+ */
+public interface ZSetCodec<E extends ZSetEle<K>, K> {
+	
+	void writeKey(DataOutput out, K id) throws IOException;
+	
+	K readKey(DataInput in) throws IOException;
+	
+	void writeElement(DataOutput out, E ele) throws IOException;
+	
+	E readElement(DataInput in) throws IOException;
+
+}
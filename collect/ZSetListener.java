@@ -0,0 +1,51 @@
+package com.yiba.core.collect;
+
+/**
+ * ZSet修改的回调，在写线程中同步调用
+ * 范围移除只回调一次，回调时元素还未移除，需要逐个元素时可以在回调中自行查询。
+ * @author U-Demon
+ */
+public interface ZSetListener<E extends ZSetEle<K>, K> {
+	
+	/**
+	 * 新元素加入
+	 * @param zset
+	 * @param ele
+	 * @param score
+	 */
+	void onAdd(ZSet<E, K> zset, E ele, long score);
+	
+	/**
+	 * 已有元素的分值改变
+	 * @param zset
+	 * @param ele
+	 * @param oldScore
+	 * @param score
+	 */
+	void onUpdate(ZSet<E, K> zset, E ele, long oldScore, long score);
+	
+	/**
+	 * 元素移除
+	 * @param zset
+	 * @param ele
+	 * @param score
+	 */
+	void onRemove(ZSet<E, K> zset, E ele, long score);
+	
+	/**
+	 * 即将移除score区间内的元素
+	 * @param zset
+	 * @param min
+	 * @param max
+	 */
+	void onRemoveRangeByScore(ZSet<E, K> zset, long min, long max);
+	
+	/**
+	 * 即将移除排名区间内的元素
+	 * @param zset
+	 * @param start
+	 * @param stop
+	 */
+	void onRemoveRangeByRank(ZSet<E, K> zset, long start, long stop);
+
+}
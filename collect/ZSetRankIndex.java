@@ -0,0 +1,196 @@
+package com.yiba.core.collect;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 分值桶的排名索引
+ * 以分值为key的treap，每个节点记录该分值的成员数和子树的成员总数，
+ * 用于ZSet按排名定位：排名 -> 分值桶和桶内位置，分值 -> 之前的成员数，都是O(log n)。
+ * 与zsl的分值桶一一对应，由ZSet在写线程维护；不修改时可以被多个线程同时读取。
+ * @author U-Demon
+ */
+class ZSetRankIndex {
+
+	private Node root;
+
+	/**
+	 * 用zsl的当前内容建立
+	 * @param zsl
+	 */
+	<E> ZSetRankIndex(Map<Long, List<E>> zsl) {
+		for (Map.Entry<Long, List<E>> entry : zsl.entrySet()) {
+			add(entry.getKey(), entry.getValue().size());
+		}
+	}
+
+	/**
+	 * 分值加入n个成员，n为负数表示移除，成员数为0时删除节点
+	 * @param score
+	 * @param n
+	 */
+	void add(long score, int n) {
+		root = add(root, score, n);
+	}
+
+	/**
+	 * 成员总数
+	 * @return
+	 */
+	long size() {
+		return sum(root);
+	}
+
+	/**
+	 * 分值小于score的成员数
+	 * @param score
+	 * @return
+	 */
+	long countLess(long score) {
+		long count = 0;
+		Node t = root;
+		while (t != null) {
+			if (t.score < score) {
+				count += sum(t.left) + t.count;
+				t = t.right;
+			}
+			else {
+				t = t.left;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 分值不大于score的成员数
+	 * @param score
+	 * @return
+	 */
+	long countLessOrEqual(long score) {
+		long count = 0;
+		Node t = root;
+		while (t != null) {
+			if (t.score <= score) {
+				count += sum(t.left) + t.count;
+				t = t.right;
+			}
+			else {
+				t = t.left;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 排名所在的分值桶
+	 * @param rank	从0开始，必须小于size()
+	 * @param pos	pos[0]返回在桶内的位置
+	 * @return 分值
+	 */
+	long select(long rank, int[] pos) {
+		Node t = root;
+		while (true) {
+			long left = sum(t.left);
+			if (rank < left) {
+				t = t.left;
+			}
+			else if (rank < left + t.count) {
+				pos[0] = (int) (rank - left);
+				return t.score;
+			}
+			else {
+				rank -= left + t.count;
+				t = t.right;
+			}
+		}
+	}
+
+	private static long sum(Node t) {
+		return t == null ? 0 : t.sum;
+	}
+
+	private static Node add(Node t, long score, int n) {
+		if (t == null) {
+			return n > 0 ? new Node(score, n) : null;
+		}
+		if (score < t.score) {
+			t.left = add(t.left, score, n);
+			if (t.left != null && t.left.priority > t.priority) {
+				t = rotateRight(t);
+			}
+		}
+		else if (score > t.score) {
+			t.right = add(t.right, score, n);
+			if (t.right != null && t.right.priority > t.priority) {
+				t = rotateLeft(t);
+			}
+		}
+		else {
+			t.count += n;
+			if (t.count <= 0) {
+				return merge(t.left, t.right);
+			}
+		}
+		t.update();
+		return t;
+	}
+
+	private static Node merge(Node a, Node b) {
+		if (a == null) {
+			return b;
+		}
+		if (b == null) {
+			return a;
+		}
+		if (a.priority > b.priority) {
+			a.right = merge(a.right, b);
+			a.update();
+			return a;
+		}
+		b.left = merge(a, b.left);
+		b.update();
+		return b;
+	}
+
+	private static Node rotateRight(Node t) {
+		Node l = t.left;
+		t.left = l.right;
+		l.right = t;
+		t.update();
+		l.update();
+		return l;
+	}
+
+	private static Node rotateLeft(Node t) {
+		Node r = t.right;
+		t.right = r.left;
+		r.left = t;
+		t.update();
+		r.update();
+		return r;
+	}
+
+	private static final class Node {
+		final long score;
+		final int priority;
+		/** 该分值的成员数 */
+		int count;
+		/** 子树的成员总数 */
+		long sum;
+		Node left;
+		Node right;
+
+		Node(long score, int count) {
+			this.score = score;
+			this.priority = ThreadLocalRandom.current().nextInt();
+			this.count = count;
+			this.sum = count;
+		}
+
+		void update() {
+			sum = ZSetRankIndex.sum(left) + count + ZSetRankIndex.sum(right);
+		}
+	}
+
+}
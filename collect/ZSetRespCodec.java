@@ -0,0 +1,30 @@
+package com.yiba.core.collect;
+
+/**
+ * ZSet元素与RESP命令中member字符串的转换
+ * @author U-Demon
+ */
+public interface ZSetRespCodec<E extends ZSetEle<K>, K> {
+	
+	/**
+	 * member字符串转为元素的key
+	 * @param member
+	 * @return
+	 */
+	K parseKey(String member);
+	
+	/**
+	 * ZADD/GEOADD加入新成员时创建元素，分值由调用者设置
+	 * @param id
+	 * @return
+	 */
+	E newElement(K id);
+	
+	/**
+	 * 元素在回复中的member字符串
+	 * @param ele
+	 * @return
+	 */
+	String toMember(E ele);
+
+}
@@ -0,0 +1,1190 @@
+package com.yiba.core.collect;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * RESP协议的ZSet命令服务
+ * 让GM后台、运维脚本、压测工具（redis-cli、redis-benchmark）可以直接查询和修改进程内的ZSet。
+ * 使用非阻塞NIO，由写线程（场景线程）每帧调用{@link #tick()}：读取所有连接上已到达的数据，
+ * 按顺序执行其中所有完整的命令（pipeline），回复直接编码到每个连接的直接内存缓冲区中，一次写出。
+ * 命令名和选项直接在输入缓冲区的字节上比较，数值参数直接从字节解析，回复直接编码到缓冲区，不经过String.getBytes。
+ * 回复没有写完的连接暂停读取，直到缓冲区写空；回复缓冲区超过上限（慢客户端或超大回复）时断开连接。
+ * 支持的命令：ZADD [NX|XX] [CH] [INCR]、ZINCRBY、ZREM、ZSCORE、ZCARD、ZRANGEBYSCORE、ZREVRANGEBYSCORE、
+ * ZREMRANGEBYSCORE、ZREMRANGEBYRANK、GEOADD、GEORADIUS，以及PING、ECHO、SELECT、CONFIG、COMMAND、QUIT。
+ * 分值为整数；GEO命令的坐标是地图坐标（±10000），不是经纬度。
+ * 没有认证，默认只监听本机地址。
+ * @author U-Demon
+ */
+public class ZSetRespServer<E extends ZSetEle<K>, K> {
+	
+	/** 单个命令的最大字节数，超过时断开 */
+	private static final int REQUEST_MAX = 64 * 1024 * 1024;
+	
+	private static final int BUFFER_SIZE = 16 * 1024;
+	
+	/** 默认的回复缓冲区上限 */
+	private static final int OUTPUT_MAX = 64 * 1024 * 1024;
+	
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NIL = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] EMPTY_ARRAY = "*0\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	/* 命令名和选项，大写 */
+	private static final byte[] ZADD = ascii("ZADD");
+	private static final byte[] ZINCRBY = ascii("ZINCRBY");
+	private static final byte[] ZREM = ascii("ZREM");
+	private static final byte[] ZSCORE = ascii("ZSCORE");
+	private static final byte[] ZCARD = ascii("ZCARD");
+	private static final byte[] ZRANGEBYSCORE = ascii("ZRANGEBYSCORE");
+	private static final byte[] ZREVRANGEBYSCORE = ascii("ZREVRANGEBYSCORE");
+	private static final byte[] ZREMRANGEBYSCORE = ascii("ZREMRANGEBYSCORE");
+	private static final byte[] ZREMRANGEBYRANK = ascii("ZREMRANGEBYRANK");
+	private static final byte[] GEOADD = ascii("GEOADD");
+	private static final byte[] GEORADIUS = ascii("GEORADIUS");
+	private static final byte[] PING = ascii("PING");
+	private static final byte[] ECHO = ascii("ECHO");
+	private static final byte[] SELECT = ascii("SELECT");
+	private static final byte[] CONFIG = ascii("CONFIG");
+	private static final byte[] COMMAND = ascii("COMMAND");
+	private static final byte[] QUIT = ascii("QUIT");
+	private static final byte[] NX = ascii("NX");
+	private static final byte[] XX = ascii("XX");
+	private static final byte[] CH = ascii("CH");
+	private static final byte[] INCR = ascii("INCR");
+	private static final byte[] WITHSCORES = ascii("WITHSCORES");
+	private static final byte[] LIMIT = ascii("LIMIT");
+	private static final byte[] NEG_INF = ascii("-INF");
+	private static final byte[] POS_INF = ascii("+INF");
+	private static final byte[] INF = ascii("INF");
+	private static final byte[] M = ascii("M");
+	private static final byte[] WITHDIST = ascii("WITHDIST");
+	private static final byte[] WITHCOORD = ascii("WITHCOORD");
+	private static final byte[] ASC = ascii("ASC");
+	private static final byte[] DESC = ascii("DESC");
+	private static final byte[] COUNT = ascii("COUNT");
+	
+	private final ZSetRespCodec<E, K> codec;
+	
+	private Selector selector;
+	
+	private ServerSocketChannel server;
+	
+	/* 当前命令的参数在输入缓冲区中的位置和长度，只在写线程中使用 */
+	private byte[] buf;
+	private int[] argOff = new int[16];
+	private int[] argLen = new int[16];
+	private int argc;
+	
+	/** 回复缓冲区上限 */
+	private int outputLimit = OUTPUT_MAX;
+	
+	/** 整数转字符的缓冲 */
+	private final byte[] digits = new byte[20];
+	
+	/* 统计 */
+	private long commands;
+	private long connections;
+	private int maxPipeline;
+	private long outputOverflows;
+	
+	public ZSetRespServer(ZSetRespCodec<E, K> codec) {
+		this.codec = codec;
+	}
+	
+	/**
+	 * 监听本机地址
+	 * @param port	0表示随机端口
+	 * @throws IOException
+	 */
+	public void listen(int port) throws IOException {
+		listen(InetAddress.getLoopbackAddress().getHostAddress(), port);
+	}
+	
+	/**
+	 * @param host
+	 * @param port	0表示随机端口
+	 * @throws IOException
+	 */
+	public void listen(String host, int port) throws IOException {
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(host, port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+	
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+	
+	/**
+	 * 写线程每帧调用，不阻塞
+	 * @return 执行的命令数
+	 */
+	public int tick() {
+		return poll(-1);
+	}
+	
+	/**
+	 * 等待网络事件后处理，独立运行时在循环中调用
+	 * @param timeoutMillis	0表示一直等待，负数表示不等待
+	 * @return 执行的命令数
+	 */
+	public int poll(long timeoutMillis) {
+		long before = commands;
+		try {
+			if (timeoutMillis < 0) {
+				selector.selectNow();
+			}
+			else {
+				selector.select(timeoutMillis);
+			}
+		} catch (IOException e) {
+			LogCore.temp.warn("resp select failed: " + e);
+			return 0;
+		}
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			if (!key.isValid()) {
+				continue;
+			}
+			if (key.isAcceptable()) {
+				accept();
+				continue;
+			}
+			@SuppressWarnings("unchecked")
+			Client client = (Client) key.attachment();
+			try {
+				if (key.isWritable()) {
+					client.flush();
+				}
+				if (key.isValid() && key.isReadable()) {
+					client.read();
+				}
+			} catch (IOException e) {
+				LogCore.temp.debug("resp client disconnected: " + e);
+				client.close();
+			}
+		}
+		return (int) (commands - before);
+	}
+	
+	private void accept() {
+		try {
+			SocketChannel ch;
+			while ((ch = server.accept()) != null) {
+				ch.configureBlocking(false);
+				ch.socket().setTcpNoDelay(true);
+				Client client = new Client(ch);
+				client.key = ch.register(selector, SelectionKey.OP_READ, client);
+				connections++;
+			}
+		} catch (IOException e) {
+			LogCore.temp.warn("resp accept failed: " + e);
+		}
+	}
+	
+	public void close() {
+		try {
+			if (selector != null) {
+				for (SelectionKey key : selector.keys()) {
+					key.channel().close();
+				}
+				selector.close();
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+	
+	/**
+	 * 已执行的命令数
+	 * @return
+	 */
+	public long getCommands() {
+		return commands;
+	}
+	
+	/**
+	 * 已接受的连接数
+	 * @return
+	 */
+	public long getConnections() {
+		return connections;
+	}
+	
+	/**
+	 * 一次读取中执行的最多命令数
+	 * @return
+	 */
+	public int getMaxPipeline() {
+		return maxPipeline;
+	}
+	
+	/**
+	 * 因回复缓冲区超过上限而断开的连接数
+	 * @return
+	 */
+	public long getOutputOverflows() {
+		return outputOverflows;
+	}
+	
+	/**
+	 * 设置每个连接回复缓冲区的上限，超过时断开
+	 * @param bytes
+	 */
+	public void setOutputLimit(int bytes) {
+		this.outputLimit = bytes;
+	}
+	
+	/**
+	 * 一个客户端连接
+	 */
+	private class Client {
+		
+		final SocketChannel ch;
+		
+		SelectionKey key;
+		
+		ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		
+		/** 回复缓冲区，写模式 */
+		ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		
+		/** 写完回复后断开 */
+		boolean closing;
+		
+		Client(SocketChannel ch) {
+			this.ch = ch;
+		}
+		
+		void read() throws IOException {
+			if (!in.hasRemaining()) {
+				if (in.capacity() >= REQUEST_MAX) {
+					throw new IOException("request too large");
+				}
+				ByteBuffer b = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				b.put(in);
+				in = b;
+			}
+			int n = ch.read(in);
+			if (n < 0) {
+				close();
+				return;
+			}
+			
+			in.flip();
+			buf = in.array();
+			int executed = 0;
+			while (!closing && in.hasRemaining()) {
+				int start = in.position();
+				int r = parse(in);
+				if (r == 0) {
+					in.position(start);
+					break;
+				}
+				if (r < 0) {
+					error(this, "Protocol error");
+					closing = true;
+					break;
+				}
+				if (argc > 0) {
+					try {
+						execute(this);
+					} catch (OutputOverflow e) {
+						outputOverflows++;
+						throw new IOException("output buffer over " + outputLimit + " bytes");
+					}
+					executed++;
+				}
+			}
+			in.compact();
+			commands += executed;
+			maxPipeline = Math.max(maxPipeline, executed);
+			flush();
+		}
+		
+		/**
+		 * 写出回复，没写完时暂停读取
+		 */
+		void flush() throws IOException {
+			out.flip();
+			ch.write(out);
+			boolean done = !out.hasRemaining();
+			out.compact();
+			if (done) {
+				if (closing) {
+					close();
+					return;
+				}
+				// 大回复写完后释放扩大的缓冲区
+				if (out.capacity() > BUFFER_SIZE * 4) {
+					out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			else {
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+		
+		/**
+		 * 保证回复缓冲区还有n个字节，超过上限时抛出OutputOverflow，连接被断开
+		 */
+		ByteBuffer ensure(int n) {
+			if (out.remaining() < n) {
+				long need = (long) out.position() + n;
+				if (need > outputLimit) {
+					throw OutputOverflow.INSTANCE;
+				}
+				ByteBuffer b = ByteBuffer.allocateDirect((int) Math.min(outputLimit, Math.max(out.capacity() * 2L, need)));
+				out.flip();
+				b.put(out);
+				out = b;
+			}
+			return out;
+		}
+		
+		void close() {
+			key.cancel();
+			try {
+				ch.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * 回复缓冲区超过上限，在read中转为IOException断开连接
+	 */
+	private static class OutputOverflow extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		static final OutputOverflow INSTANCE = new OutputOverflow();
+		
+		OutputOverflow() {
+			super(null, null, false, false);
+		}
+	}
+	
+	//-=-=-=-=-=-=-=-=-=-=-=-=请求解析-=-=-=-=-=-=-=-=-=-=-=-=//
+	
+	/**
+	 * 解析一个命令，支持RESP数组和空格分隔的inline命令
+	 * 参数不复制，只记录在输入缓冲区中的位置
+	 * @return 1成功，0数据不完整，-1协议错误
+	 */
+	private int parse(ByteBuffer in) {
+		argc = 0;
+		if (in.get(in.position()) != '*') {
+			return parseInline(in);
+		}
+		
+		in.get();
+		long n = readLine(in);
+		if (n == -2) {
+			return 0;
+		}
+		if (n < 0 || n > 1024 * 1024) {
+			return n == -1 ? 1 : -1;
+		}
+		for (int i = 0; i < n; ++i) {
+			if (!in.hasRemaining()) {
+				return 0;
+			}
+			if (in.get() != '$') {
+				return -1;
+			}
+			long len = readLine(in);
+			if (len == -2) {
+				return 0;
+			}
+			if (len < 0 || len > REQUEST_MAX) {
+				return -1;
+			}
+			if (in.remaining() < len + 2) {
+				return 0;
+			}
+			addArg(in.position(), (int) len);
+			in.position(in.position() + (int) len + 2);
+		}
+		return 1;
+	}
+	
+	private int parseInline(ByteBuffer in) {
+		int start = in.position();
+		for (int i = start; i < in.limit(); ++i) {
+			if (in.get(i) == '\n') {
+				int from = -1;
+				for (int j = start; j <= i; ++j) {
+					byte b = in.get(j);
+					boolean space = b == ' ' || b == '\t' || b == '\r' || b == '\n';
+					if (!space && from < 0) {
+						from = j;
+					}
+					else if (space && from >= 0) {
+						addArg(from, j - from);
+						from = -1;
+					}
+				}
+				in.position(i + 1);
+				return 1;
+			}
+		}
+		return 0;
+	}
+	
+	private void addArg(int off, int len) {
+		if (argc == argOff.length) {
+			argOff = Arrays.copyOf(argOff, argc * 2);
+			argLen = Arrays.copyOf(argLen, argc * 2);
+		}
+		argOff[argc] = off;
+		argLen[argc++] = len;
+	}
+	
+	/**
+	 * 参数转为字符串，只用于key、member等需要字符串的地方
+	 */
+	private String arg(int i) {
+		return new String(buf, argOff[i], argLen[i], StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * 参数是否等于name，忽略大小写
+	 * @param name	大写
+	 */
+	private boolean argIs(int i, byte[] name) {
+		if (argLen[i] != name.length) {
+			return false;
+		}
+		int off = argOff[i];
+		for (int j = 0; j < name.length; ++j) {
+			int b = buf[off + j];
+			if (b >= 'a' && b <= 'z') {
+				b -= 'a' - 'A';
+			}
+			if (b != name[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private long argLong(int i) {
+		return parseLong(argOff[i], argLen[i]);
+	}
+	
+	private int argInt(int i) {
+		long v = argLong(i);
+		if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+			throw new NumberFormatException();
+		}
+		return (int) v;
+	}
+	
+	/**
+	 * 从输入缓冲区解析十进制整数，规则同Long.parseLong
+	 */
+	private long parseLong(int off, int len) {
+		int end = off + len;
+		if (len == 0) {
+			throw new NumberFormatException();
+		}
+		boolean neg = buf[off] == '-';
+		if (neg || buf[off] == '+') {
+			if (++off == end) {
+				throw new NumberFormatException();
+			}
+		}
+		// 按负数累加，Long.MIN_VALUE才不会溢出
+		long limit = neg ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long v = 0;
+		for (; off < end; ++off) {
+			int d = buf[off] - '0';
+			if (d < 0 || d > 9 || v < limit / 10) {
+				throw new NumberFormatException();
+			}
+			v *= 10;
+			if (v < limit + d) {
+				throw new NumberFormatException();
+			}
+			v -= d;
+		}
+		return neg ? v : -v;
+	}
+	
+	/**
+	 * 读取以\r\n结尾的整数
+	 * @return 数据不完整返回-2，格式错误返回-3
+	 */
+	private static long readLine(ByteBuffer in) {
+		int start = in.position();
+		for (int i = start; i + 1 < in.limit(); ++i) {
+			if (in.get(i) == '\r') {
+				if (in.get(i + 1) != '\n') {
+					return -3;
+				}
+				long v = 0;
+				boolean neg = false;
+				for (int j = start; j < i; ++j) {
+					byte c = in.get(j);
+					if (j == start && c == '-') {
+						neg = true;
+					}
+					else if (c >= '0' && c <= '9') {
+						v = v * 10 + (c - '0');
+					}
+					else {
+						return -3;
+					}
+				}
+				in.position(i + 2);
+				if (neg) {
+					return v == 1 ? -1 : -3;
+				}
+				return v;
+			}
+		}
+		return -2;
+	}
+	
+	//-=-=-=-=-=-=-=-=-=-=-=-=命令-=-=-=-=-=-=-=-=-=-=-=-=//
+	
+	private void execute(Client c) {
+		try {
+			if (argIs(0, ZADD)) {
+				zadd(c, 0);
+			}
+			else if (argIs(0, ZINCRBY)) {
+				zincrby(c);
+			}
+			else if (argIs(0, ZREM)) {
+				zrem(c);
+			}
+			else if (argIs(0, ZSCORE)) {
+				zscore(c);
+			}
+			else if (argIs(0, ZCARD)) {
+				zcard(c);
+			}
+			else if (argIs(0, ZRANGEBYSCORE)) {
+				zrangeGeneric(c, false);
+			}
+			else if (argIs(0, ZREVRANGEBYSCORE)) {
+				zrangeGeneric(c, true);
+			}
+			else if (argIs(0, ZREMRANGEBYSCORE)) {
+				zremrangebyscore(c);
+			}
+			else if (argIs(0, ZREMRANGEBYRANK)) {
+				zremrangebyrank(c);
+			}
+			else if (argIs(0, GEOADD)) {
+				geoadd(c);
+			}
+			else if (argIs(0, GEORADIUS)) {
+				georadius(c);
+			}
+			else if (argIs(0, PING)) {
+				if (argc > 1) {
+					bulkArg(c, 1);
+				}
+				else {
+					c.ensure(PONG.length).put(PONG);
+				}
+			}
+			else if (argIs(0, ECHO)) {
+				if (arity(c, 2)) {
+					bulkArg(c, 1);
+				}
+			}
+			else if (argIs(0, SELECT)) {
+				c.ensure(OK.length).put(OK);
+			}
+			else if (argIs(0, CONFIG) || argIs(0, COMMAND)) {
+				c.ensure(EMPTY_ARRAY.length).put(EMPTY_ARRAY);
+			}
+			else if (argIs(0, QUIT)) {
+				c.ensure(OK.length).put(OK);
+				c.closing = true;
+			}
+			else {
+				error(c, "unknown command '" + arg(0) + "'");
+			}
+		} catch (NumberFormatException e) {
+			error(c, "value is not an integer or out of range");
+		}
+	}
+	
+	/**
+	 * 检查参数个数
+	 */
+	private boolean arity(Client c, int n) {
+		if (argc != n) {
+			error(c, "wrong number of arguments for '" + arg(0).toLowerCase() + "' command");
+			return false;
+		}
+		return true;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private ZSet<E, K> lookup(String key, boolean create) {
+		ZSet<E, K> zset = ZSet.lookupKey(key);
+		if (zset == null && create) {
+			zset = new ZSet<>(key);
+			ZSet.addZSet(zset);
+		}
+		return zset;
+	}
+	
+	/**
+	 * ZADD key [NX|XX] [CH] [INCR] score member [score member ...]
+	 * @param flags	ZINCRBY调用时带上ZADD_INCR
+	 */
+	private void zadd(Client c, int flags) {
+		int i = 2;
+		for (; i < argc; ++i) {
+			if (argIs(i, NX)) flags |= EnumModuleZSet.ZADD_NX.getFlag();
+			else if (argIs(i, XX)) flags |= EnumModuleZSet.ZADD_XX.getFlag();
+			else if (argIs(i, CH)) flags |= EnumModuleZSet.ZADD_CH.getFlag();
+			else if (argIs(i, INCR)) flags |= EnumModuleZSet.ZADD_INCR.getFlag();
+			else break;
+		}
+		boolean nx = EnumModuleZSet.contain(flags, EnumModuleZSet.ZADD_NX);
+		boolean xx = EnumModuleZSet.contain(flags, EnumModuleZSet.ZADD_XX);
+		boolean ch = EnumModuleZSet.contain(flags, EnumModuleZSet.ZADD_CH);
+		boolean incr = EnumModuleZSet.contain(flags, EnumModuleZSet.ZADD_INCR);
+		
+		int elements = argc - i;
+		if (elements == 0 || elements % 2 != 0) {
+			error(c, "syntax error");
+			return;
+		}
+		elements /= 2;
+		if (nx && xx) {
+			error(c, "XX and NX options at the same time are not compatible");
+			return;
+		}
+		if (incr && elements > 1) {
+			error(c, "INCR option supports a single increment-element pair");
+			return;
+		}
+		// 先检查所有分值，避免只执行了一部分
+		long[] scores = new long[elements];
+		for (int j = 0; j < elements; ++j) {
+			scores[j] = argLong(i + j * 2);
+		}
+		
+		ZSet<E, K> zset = lookup(arg(1), !xx);
+		int added = 0;
+		int updated = 0;
+		long score = 0;
+		boolean processed = false;
+		for (int j = 0; zset != null && j < elements; ++j) {
+			K id = codec.parseKey(arg(i + j * 2 + 1));
+			E de = zset.get(id);
+			if (de != null) {
+				if (nx) {
+					continue;
+				}
+				long oldScore = de.getScore();
+				score = incr ? oldScore + scores[j] : scores[j];
+				if (score != oldScore) {
+					zset.add(score, de, false, false, false);
+					updated++;
+				}
+				processed = true;
+			}
+			else if (!xx) {
+				score = scores[j];
+				E ele = codec.newElement(id);
+				ele.setScore(score);
+				zset.add(score, ele, false, false, false);
+				added++;
+				processed = true;
+			}
+		}
+		
+		if (incr) {
+			if (processed) {
+				bulk(c, score);
+			}
+			else {
+				c.ensure(NIL.length).put(NIL);
+			}
+		}
+		else {
+			integer(c, ch ? added + updated : added);
+		}
+	}
+	
+	/**
+	 * ZINCRBY key increment member
+	 */
+	private void zincrby(Client c) {
+		if (arity(c, 4)) {
+			zadd(c, EnumModuleZSet.ZADD_INCR.getFlag());
+		}
+	}
+	
+	/**
+	 * ZREM key member [member ...]
+	 */
+	private void zrem(Client c) {
+		if (argc < 3) {
+			arity(c, 3);
+			return;
+		}
+		ZSet<E, K> zset = lookup(arg(1), false);
+		int removed = 0;
+		for (int i = 2; zset != null && i < argc; ++i) {
+			K id = codec.parseKey(arg(i));
+			if (zset.get(id) != null) {
+				zset.remove(id);
+				removed++;
+			}
+		}
+		integer(c, removed);
+	}
+	
+	/**
+	 * ZSCORE key member
+	 * 已过期的成员先移除，返回nil
+	 */
+	private void zscore(Client c) {
+		if (!arity(c, 3)) {
+			return;
+		}
+		ZSet<E, K> zset = lookup(arg(1), false);
+		E ele = zset == null ? null : zset.get(codec.parseKey(arg(2)));
+		if (ele == null) {
+			c.ensure(NIL.length).put(NIL);
+		}
+		else {
+			bulk(c, ele.getScore());
+		}
+	}
+	
+	/**
+	 * ZCARD key
+	 * 不计已过期的成员
+	 */
+	private void zcard(Client c) {
+		if (!arity(c, 2)) {
+			return;
+		}
+		ZSet<E, K> zset = lookup(arg(1), false);
+		integer(c, zset == null ? 0 : zset.size());
+	}
+	
+	/**
+	 * ZRANGEBYSCORE key min max [WITHSCORES] [LIMIT offset count]
+	 * ZREVRANGEBYSCORE key max min [WITHSCORES] [LIMIT offset count]
+	 */
+	private void zrangeGeneric(Client c, boolean reverse) {
+		if (argc < 4) {
+			arity(c, 4);
+			return;
+		}
+		long min = argBound(reverse ? 3 : 2, true);
+		long max = argBound(reverse ? 2 : 3, false);
+		boolean withScores = false;
+		int offset = 0;
+		int count = -1;
+		for (int i = 4; i < argc; ++i) {
+			if (argIs(i, WITHSCORES)) {
+				withScores = true;
+			}
+			else if (argIs(i, LIMIT) && i + 2 < argc) {
+				offset = argInt(i + 1);
+				count = argInt(i + 2);
+				i += 2;
+			}
+			else {
+				error(c, "syntax error");
+				return;
+			}
+		}
+		
+		ZSet<E, K> zset = lookup(arg(1), false);
+		if (zset == null || offset < 0) {
+			c.ensure(EMPTY_ARRAY.length).put(EMPTY_ARRAY);
+			return;
+		}
+		List<E> list = reverse ? zset.revRangeByScore(max, min, offset, count) : zset.rangeByScore(min, max, offset, count);
+		arrayHeader(c, withScores ? list.size() * 2 : list.size());
+		for (E ele : list) {
+			bulk(c, codec.toMember(ele));
+			if (withScores) {
+				bulk(c, ele.getScore());
+			}
+		}
+	}
+	
+	/**
+	 * 分值区间的边界，支持-inf、+inf和"("开头的开区间
+	 */
+	private long argBound(int i, boolean isMin) {
+		if (argIs(i, NEG_INF)) {
+			return Long.MIN_VALUE;
+		}
+		if (argIs(i, POS_INF) || argIs(i, INF)) {
+			return Long.MAX_VALUE;
+		}
+		if (argLen[i] > 0 && buf[argOff[i]] == '(') {
+			long v = parseLong(argOff[i] + 1, argLen[i] - 1);
+			if (isMin) {
+				return v == Long.MAX_VALUE ? v : v + 1;
+			}
+			return v == Long.MIN_VALUE ? v : v - 1;
+		}
+		return argLong(i);
+	}
+	
+	/**
+	 * ZREMRANGEBYSCORE key min max
+	 */
+	private void zremrangebyscore(Client c) {
+		if (!arity(c, 4)) {
+			return;
+		}
+		long min = argBound(2, true);
+		long max = argBound(3, false);
+		ZSet<E, K> zset = lookup(arg(1), false);
+		integer(c, zset == null ? 0 : zset.removeRangeByScore(min, max));
+	}
+	
+	/**
+	 * ZREMRANGEBYRANK key start stop
+	 */
+	private void zremrangebyrank(Client c) {
+		if (!arity(c, 4)) {
+			return;
+		}
+		long start = argLong(2);
+		long stop = argLong(3);
+		ZSet<E, K> zset = lookup(arg(1), false);
+		integer(c, zset == null ? 0 : zset.removeRangeByRank(start, stop));
+	}
+	
+	/**
+	 * GEOADD key x y member [x y member ...]
+	 */
+	private void geoadd(Client c) {
+		int elements = argc - 2;
+		if (elements == 0 || elements % 3 != 0) {
+			error(c, "syntax error. Try GEOADD key [x1] [y1] [name1] [x2] [y2] [name2] ...");
+			return;
+		}
+		elements /= 3;
+		long[] scores = new long[elements];
+		for (int j = 0; j < elements; ++j) {
+			double x = parseDouble(arg(2 + j * 3));
+			double y = parseDouble(arg(3 + j * 3));
+			if (Double.isNaN(x) || Double.isNaN(y) || Math.abs(x) > 10000 || Math.abs(y) > 10000) {
+				error(c, "invalid x,y pair " + arg(2 + j * 3) + "," + arg(3 + j * 3));
+				return;
+			}
+			scores[j] = ZSets.calcScore(x, y);
+		}
+		
+		ZSet<E, K> zset = lookup(arg(1), true);
+		int added = 0;
+		for (int j = 0; j < elements; ++j) {
+			K id = codec.parseKey(arg(4 + j * 3));
+			E de = zset.get(id);
+			if (de != null) {
+				zset.add(scores[j], de, false, false, false);
+			}
+			else {
+				E ele = codec.newElement(id);
+				ele.setScore(scores[j]);
+				zset.add(scores[j], ele, false, false, false);
+				added++;
+			}
+		}
+		integer(c, added);
+	}
+	
+	/**
+	 * GEORADIUS key x y radius [m] [WITHDIST] [WITHCOORD] [COUNT count] [ASC|DESC]
+	 * 距离用分值所在格子的中心计算，误差在半个格子内。
+	 */
+	private void georadius(Client c) {
+		if (argc < 5) {
+			arity(c, 5);
+			return;
+		}
+		double x = parseDouble(arg(2));
+		double y = parseDouble(arg(3));
+		double radius = parseDouble(arg(4));
+		if (Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(radius) || radius < 0) {
+			error(c, "need numeric x, y and radius");
+			return;
+		}
+		boolean withDist = false;
+		boolean withCoord = false;
+		int count = -1;
+		int sort = 0;
+		for (int i = 5; i < argc; ++i) {
+			if (argIs(i, M)) continue;
+			else if (argIs(i, WITHDIST)) withDist = true;
+			else if (argIs(i, WITHCOORD)) withCoord = true;
+			else if (argIs(i, ASC)) sort = 1;
+			else if (argIs(i, DESC)) sort = -1;
+			else if (argIs(i, COUNT) && i + 1 < argc) {
+				count = argInt(++i);
+				if (count <= 0) {
+					error(c, "COUNT must be > 0");
+					return;
+				}
+			}
+			else {
+				error(c, "syntax error");
+				return;
+			}
+		}
+		// 只取前count个时按距离排序，结果才有意义
+		if (count > 0 && sort == 0) {
+			sort = 1;
+		}
+		
+		ZSet<E, K> zset = lookup(arg(1), false);
+		List<GeoHit<E>> hits = new ArrayList<>();
+		if (zset != null) {
+			// 相邻区域的score区间首尾相接，可能重复
+			Set<K> seen = new HashSet<>();
+			for (E ele : zset.georadius(x, y, radius)) {
+				if (!seen.add(ele.getKey())) {
+					continue;
+				}
+				// 成员的位置取分值所在最细格子的中心，与calcScore的精度一致
+				double[] area = ZSets.scoreDecode(ele.getScore());
+				double ex = (area[0] + area[1]) / 2;
+				double ey = (area[2] + area[3]) / 2;
+				double dist = ZSets.geohashGetDistance(x, y, ex, ey);
+				if (dist <= radius) {
+					hits.add(new GeoHit<>(ele, dist, ex, ey));
+				}
+			}
+		}
+		if (sort != 0) {
+			int s = sort;
+			hits.sort((a, b) -> s * Double.compare(a.dist, b.dist));
+		}
+		int n = count > 0 ? Math.min(count, hits.size()) : hits.size();
+		
+		arrayHeader(c, n);
+		for (int i = 0; i < n; ++i) {
+			GeoHit<E> hit = hits.get(i);
+			if (!withDist && !withCoord) {
+				bulk(c, codec.toMember(hit.ele));
+				continue;
+			}
+			arrayHeader(c, 1 + (withDist ? 1 : 0) + (withCoord ? 1 : 0));
+			bulk(c, codec.toMember(hit.ele));
+			if (withDist) {
+				bulk(c, String.format("%.4f", hit.dist));
+			}
+			if (withCoord) {
+				arrayHeader(c, 2);
+				bulk(c, String.valueOf(hit.x));
+				bulk(c, String.valueOf(hit.y));
+			}
+		}
+	}
+	
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	private static double parseDouble(String s) {
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+	
+	private static class GeoHit<E> {
+		final E ele;
+		final double dist;
+		final double x;
+		final double y;
+		
+		GeoHit(E ele, double dist, double x, double y) {
+			this.ele = ele;
+			this.dist = dist;
+			this.x = x;
+			this.y = y;
+		}
+	}
+	
+	//-=-=-=-=-=-=-=-=-=-=-=-=回复编码-=-=-=-=-=-=-=-=-=-=-=-=//
+	
+	private void error(Client c, String msg) {
+		ByteBuffer out = c.ensure(utf8Length(msg) + 7);
+		out.put((byte) '-').put((byte) 'E').put((byte) 'R').put((byte) 'R').put((byte) ' ');
+		putUtf8(out, msg);
+		out.put(CRLF);
+	}
+	
+	private void integer(Client c, long v) {
+		ByteBuffer out = c.ensure(23);
+		out.put((byte) ':');
+		putLong(out, v);
+		out.put(CRLF);
+	}
+	
+	private void arrayHeader(Client c, int n) {
+		ByteBuffer out = c.ensure(23);
+		out.put((byte) '*');
+		putLong(out, n);
+		out.put(CRLF);
+	}
+	
+	/**
+	 * 字符串按UTF-8直接编码到缓冲区
+	 */
+	private void bulk(Client c, String s) {
+		int len = utf8Length(s);
+		ByteBuffer out = c.ensure(len + 25);
+		out.put((byte) '$');
+		putLong(out, len);
+		out.put(CRLF);
+		putUtf8(out, s);
+		out.put(CRLF);
+	}
+	
+	/**
+	 * 参数原样作为bulk string，从输入缓冲区复制
+	 */
+	private void bulkArg(Client c, int i) {
+		ByteBuffer out = c.ensure(argLen[i] + 25);
+		out.put((byte) '$');
+		putLong(out, argLen[i]);
+		out.put(CRLF).put(buf, argOff[i], argLen[i]).put(CRLF);
+	}
+	
+	/**
+	 * 整数作为bulk string，直接写入缓冲区
+	 */
+	private void bulk(Client c, long v) {
+		ByteBuffer out = c.ensure(48);
+		int len = toDigits(v);
+		// digits中已是v，长度最多20，直接写
+		out.put((byte) '$');
+		if (len >= 10) {
+			out.put((byte) ('0' + len / 10));
+		}
+		out.put((byte) ('0' + len % 10));
+		out.put(CRLF).put(digits, digits.length - len, len).put(CRLF);
+	}
+	
+	private void putLong(ByteBuffer out, long v) {
+		int len = toDigits(v);
+		out.put(digits, digits.length - len, len);
+	}
+	
+	/**
+	 * UTF-8编码后的字节数，不成对的代理字符按'?'计算，与String.getBytes一致
+	 */
+	private static int utf8Length(String s) {
+		int n = s.length();
+		int len = n;
+		for (int i = 0; i < n; ++i) {
+			char ch = s.charAt(i);
+			if (ch < 0x80) {
+				continue;
+			}
+			if (ch < 0x800) {
+				len += 1;
+			}
+			else if (!Character.isSurrogate(ch)) {
+				len += 2;
+			}
+			else if (Character.isHighSurrogate(ch) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				len += 2;
+				i++;
+			}
+		}
+		return len;
+	}
+	
+	private static void putUtf8(ByteBuffer out, String s) {
+		int n = s.length();
+		for (int i = 0; i < n; ++i) {
+			char ch = s.charAt(i);
+			if (ch < 0x80) {
+				out.put((byte) ch);
+			}
+			else if (ch < 0x800) {
+				out.put((byte) (0xC0 | ch >> 6));
+				out.put((byte) (0x80 | ch & 0x3F));
+			}
+			else if (!Character.isSurrogate(ch)) {
+				out.put((byte) (0xE0 | ch >> 12));
+				out.put((byte) (0x80 | ch >> 6 & 0x3F));
+				out.put((byte) (0x80 | ch & 0x3F));
+			}
+			else if (Character.isHighSurrogate(ch) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(ch, s.charAt(++i));
+				out.put((byte) (0xF0 | cp >> 18));
+				out.put((byte) (0x80 | cp >> 12 & 0x3F));
+				out.put((byte) (0x80 | cp >> 6 & 0x3F));
+				out.put((byte) (0x80 | cp & 0x3F));
+			}
+			else {
+				out.put((byte) '?');
+			}
+		}
+	}
+	
+	/**
+	 * 整数的十进制字符写到digits末尾
+	 * @return 字符数
+	 */
+	private int toDigits(long v) {
+		if (v == Long.MIN_VALUE) {
+			byte[] b = Long.toString(v).getBytes(StandardCharsets.US_ASCII);
+			System.arraycopy(b, 0, digits, digits.length - b.length, b.length);
+			return b.length;
+		}
+		boolean neg = v < 0;
+		if (neg) {
+			v = -v;
+		}
+		int pos = digits.length;
+		do {
+			digits[--pos] = (byte) ('0' + v % 10);
+			v /= 10;
+		} while (v != 0);
+		if (neg) {
+			digits[--pos] = '-';
+		}
+		return digits.length - pos;
+	}
+
+}
@@ -0,0 +1,276 @@
+package com.yiba.core.collect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.yiba.core.collect.ZSetVersions.Node;
+
+/**
+ * ZSet某一时刻的只读快照，可以在任意线程使用
+ * 快照中记录的是当时的分值，返回的成员对象本身仍可能被写线程修改，
+ * 需要当时的分值时使用{@link #score(Object)}，不要读取成员的getScore()。
+ * @author U-Demon
+ */
+public class ZSetSnapshot<E extends ZSetEle<K>, K> {
+	
+	private final ZSetVersions.Version version;
+	
+	ZSetSnapshot(ZSetVersions.Version version) {
+		this.version = version;
+	}
+	
+	/**
+	 * 快照对应的版本号，每次修改加1
+	 * @return
+	 */
+	public long version() {
+		return version.version;
+	}
+	
+	/**
+	 * 元素个数
+	 * @return
+	 */
+	public int size() {
+		return Node.size(version.byScore);
+	}
+	
+	/**
+	 * 快照时成员的分值，不存在返回null
+	 * @param id
+	 * @return
+	 */
+	public Long score(K id) {
+		Node n = ZSetVersions.findByKey(version.byKey, ZSetVersions.hash(id), id);
+		return n == null ? null : n.score;
+	}
+	
+	/**
+	 * 通过score区间获取
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public List<E> rangeByScore(long min, long max) {
+		return rangeByScore(min, max, null);
+	}
+	
+	public List<E> rangeByScore(long min, long max, List<E> list) {
+		if (list == null) {
+			list = new ArrayList<>();
+		}
+		
+		if (min > max) {
+			return list;
+		}
+		
+		collect(version.byScore, min, max, list);
+		return list;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void collect(Node t, long min, long max, List<E> list) {
+		while (t != null) {
+			if (t.score >= min) {
+				collect(t.left, min, max, list);
+			}
+			if (t.score > max) {
+				return;
+			}
+			if (t.score >= min) {
+				list.add((E) t.ele);
+			}
+			t = t.right;
+		}
+	}
+	
+	/**
+	 * 通过score区间获取惰性的Stream，不生成中间列表
+	 * 快照不可变，可以放心使用parallel()，Spliterator按排名精确二分，拆分是均衡的。
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public Stream<E> streamByScore(long min, long max) {
+		long from = countLess(version.byScore, min, false);
+		long to = min > max ? from : countLess(version.byScore, max, true);
+		return StreamSupport.stream(new RankSpliterator(version.byScore, from, to), false);
+	}
+	
+	/**
+	 * 分值小于score（inclusive时小于等于）的元素个数
+	 */
+	private static long countLess(Node t, long score, boolean inclusive) {
+		long count = 0;
+		while (t != null) {
+			if (t.score < score || (inclusive && t.score == score)) {
+				count += Node.size(t.left) + 1;
+				t = t.right;
+			}
+			else {
+				t = t.left;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * 成员的排名，从0开始，不存在返回-1
+	 * @param id
+	 * @return
+	 */
+	public long rank(K id) {
+		Node n = ZSetVersions.findByKey(version.byKey, ZSetVersions.hash(id), id);
+		if (n == null) {
+			return -1;
+		}
+		long rank = 0;
+		Node t = version.byScore;
+		while (t != null) {
+			if (t.score < n.score || (t.score == n.score && t.seq < n.seq)) {
+				rank += Node.size(t.left) + 1;
+				t = t.right;
+			}
+			else if (t.seq == n.seq) {
+				return rank + Node.size(t.left);
+			}
+			else {
+				t = t.left;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * 通过排名获取元素，排名从0开始
+	 * @param rank
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public E getByRank(long rank) {
+		Node t = version.byScore;
+		if (rank < 0 || rank >= Node.size(t)) {
+			return null;
+		}
+		while (t != null) {
+			int left = Node.size(t.left);
+			if (rank < left) {
+				t = t.left;
+			}
+			else if (rank == left) {
+				return (E) t.ele;
+			}
+			else {
+				rank -= left + 1;
+				t = t.right;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * 查找附近的元素
+	 * 找到所有可能的，需要在外层再判断实际距离和radius是否满足
+	 * @param x
+	 * @param y
+	 * @param radius
+	 */
+	public List<E> georadius(double x, double y, double radius) {
+		ZSets.GeoArea area = ZSets.geohashGetAreasByRadius(x, y, radius);
+		
+		List<E> members = new ArrayList<>();
+		
+		long last_processed = -1;
+		for (long geohash : area.geohashNeighbors) {
+			if (geohash == -1 || last_processed == geohash) {
+				continue;
+			}
+			long[] scores = ZSets.scoresOfGeoHashBox(geohash, area.steps);
+			rangeByScore(scores[0], scores[1], members);
+			last_processed = geohash;
+		}
+		
+		return members;
+	}
+	
+	/**
+	 * 按排名区间拆分的Spliterator，区间为[from, to)
+	 */
+	private class RankSpliterator implements Spliterator<E> {
+		
+		private final Node root;
+		private long from;
+		private final long to;
+		
+		RankSpliterator(Node root, long from, long to) {
+			this.root = root;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super E> action) {
+			if (from >= to) {
+				return false;
+			}
+			action.accept(getByRank(from++));
+			return true;
+		}
+		
+		@Override
+		public void forEachRemaining(Consumer<? super E> action) {
+			if (from < to) {
+				walk(root, 0, action);
+				from = to;
+			}
+		}
+		
+		/**
+		 * 中序遍历排名在[from, to)内的节点
+		 * @param offset	子树中第一个节点的排名
+		 */
+		@SuppressWarnings("unchecked")
+		private void walk(Node t, long offset, Consumer<? super E> action) {
+			while (t != null) {
+				long rank = offset + Node.size(t.left);
+				if (rank > from) {
+					walk(t.left, offset, action);
+				}
+				if (rank >= to) {
+					return;
+				}
+				if (rank >= from) {
+					action.accept((E) t.ele);
+				}
+				offset = rank + 1;
+				t = t.right;
+			}
+		}
+		
+		@Override
+		public Spliterator<E> trySplit() {
+			long mid = (from + to) >>> 1;
+			if (mid <= from) {
+				return null;
+			}
+			RankSpliterator prefix = new RankSpliterator(root, from, mid);
+			from = mid;
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return to - from;
+		}
+		
+		@Override
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+		}
+	}
+
+}
@@ -0,0 +1,240 @@
+package com.yiba.core.collect;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ZSet的多版本索引
+ * 使用路径复制的持久化treap，每次修改只复制根到修改点路径上的O(log n)个节点，旧版本保持不变。
+ * 写线程（场景线程）每次修改后发布新的根，其他线程通过{@link #snapshot()}以O(1)代价拿到当时的只读视图，
+ * 读写双方都不加锁、互不等待。
+ * 只允许一个写线程。
+ * @author U-Demon
+ */
+public class ZSetVersions<E extends ZSetEle<K>, K> {
+	
+	/** 当前发布的版本，读线程只读取这个字段 */
+	private volatile Version current;
+	
+	/** 成员序号，用于区分相同分值的成员，保证插入顺序 */
+	private long seqGen;
+	
+	public ZSetVersions() {
+		this.current = new Version(null, null, 0);
+	}
+	
+	/**
+	 * 当前版本的只读快照
+	 * @return
+	 */
+	public ZSetSnapshot<E, K> snapshot() {
+		return new ZSetSnapshot<>(current);
+	}
+	
+	/**
+	 * 写线程：新成员加入
+	 * @param ele
+	 * @param score
+	 */
+	void insert(E ele, long score) {
+		Version v = current;
+		long seq = ++seqGen;
+		int hash = hash(ele.getKey());
+		int priority = ThreadLocalRandom.current().nextInt();
+		Node byScore = insert(v.byScore, new Node(score, seq, hash, ele, priority, null, null), false);
+		Node byKey = insert(v.byKey, new Node(score, seq, hash, ele, priority, null, null), true);
+		current = new Version(byScore, byKey, v.version + 1);
+	}
+	
+	/**
+	 * 写线程：成员分值改变
+	 * @param ele
+	 * @param score
+	 */
+	void update(E ele, long score) {
+		Version v = current;
+		Node old = findByKey(v.byKey, hash(ele.getKey()), ele.getKey());
+		if (old == null) {
+			insert(ele, score);
+			return;
+		}
+		// 与ZSet一致，分值改变后排在相同分值元素的最后，需要新的序号
+		long seq = ++seqGen;
+		Node byScore = delete(v.byScore, old.score, old.seq, false);
+		byScore = insert(byScore, new Node(score, seq, old.hash, old.ele, old.priority, null, null), false);
+		Node byKey = delete(v.byKey, old.hash, old.seq, true);
+		byKey = insert(byKey, new Node(score, seq, old.hash, old.ele, old.priority, null, null), true);
+		current = new Version(byScore, byKey, v.version + 1);
+	}
+	
+	/**
+	 * 写线程：成员移除
+	 * @param id
+	 */
+	void remove(K id) {
+		Version v = current;
+		Node old = findByKey(v.byKey, hash(id), id);
+		if (old == null) {
+			return;
+		}
+		Node byScore = delete(v.byScore, old.score, old.seq, false);
+		Node byKey = delete(v.byKey, old.hash, old.seq, true);
+		current = new Version(byScore, byKey, v.version + 1);
+	}
+	
+	static int hash(Object id) {
+		int h = id.hashCode();
+		return h ^ (h >>> 16);
+	}
+	
+	//-=-=-=-=-=-=-=-=-=-=-=-=持久化treap-=-=-=-=-=-=-=-=-=-=-=-=//
+	// byScore树按(score, seq)排序，byKey树按(hash, seq)排序，两棵树的节点互不共享。
+	
+	/**
+	 * 节点与key比较
+	 * @return 节点小于key返回负数
+	 */
+	private static int compare(Node t, long key, long seq, boolean byHash) {
+		long k = byHash ? t.hash : t.score;
+		if (k != key) {
+			return k < key ? -1 : 1;
+		}
+		return Long.compare(t.seq, seq);
+	}
+	
+	private static Node insert(Node t, Node n, boolean byHash) {
+		if (t == null) {
+			return n;
+		}
+		long key = byHash ? n.hash : n.score;
+		if (n.priority > t.priority) {
+			Node[] pair = split(t, key, n.seq, byHash);
+			return n.with(pair[0], pair[1]);
+		}
+		if (compare(t, key, n.seq, byHash) > 0) {
+			return t.with(insert(t.left, n, byHash), t.right);
+		}
+		return t.with(t.left, insert(t.right, n, byHash));
+	}
+	
+	/**
+	 * 拆分为小于key和大于等于key的两棵树
+	 */
+	private static Node[] split(Node t, long key, long seq, boolean byHash) {
+		if (t == null) {
+			return new Node[2];
+		}
+		if (compare(t, key, seq, byHash) < 0) {
+			Node[] pair = split(t.right, key, seq, byHash);
+			pair[0] = t.with(t.left, pair[0]);
+			return pair;
+		}
+		Node[] pair = split(t.left, key, seq, byHash);
+		pair[1] = t.with(pair[1], t.right);
+		return pair;
+	}
+	
+	/**
+	 * 合并，a中所有节点小于b
+	 */
+	private static Node merge(Node a, Node b) {
+		if (a == null) {
+			return b;
+		}
+		if (b == null) {
+			return a;
+		}
+		if (a.priority > b.priority) {
+			return a.with(a.left, merge(a.right, b));
+		}
+		return b.with(merge(a, b.left), b.right);
+	}
+	
+	private static Node delete(Node t, long key, long seq, boolean byHash) {
+		if (t == null) {
+			return null;
+		}
+		int c = compare(t, key, seq, byHash);
+		if (c == 0) {
+			return merge(t.left, t.right);
+		}
+		if (c > 0) {
+			return t.with(delete(t.left, key, seq, byHash), t.right);
+		}
+		return t.with(t.left, delete(t.right, key, seq, byHash));
+	}
+	
+	/**
+	 * byKey树中通过key查找，hash相同的节点是连续的
+	 */
+	static Node findByKey(Node t, int hash, Object id) {
+		while (t != null) {
+			if (t.hash < hash) {
+				t = t.right;
+			}
+			else if (t.hash > hash) {
+				t = t.left;
+			}
+			else {
+				if (id.equals(t.ele.getKey())) {
+					return t;
+				}
+				Node n = findByKey(t.left, hash, id);
+				if (n != null) {
+					return n;
+				}
+				t = t.right;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * 不可变的树节点
+	 */
+	static final class Node {
+		final long score;
+		final long seq;
+		final int hash;
+		final ZSetEle<?> ele;
+		final int priority;
+		final Node left;
+		final Node right;
+		/** 子树节点数 */
+		final int size;
+		
+		Node(long score, long seq, int hash, ZSetEle<?> ele, int priority, Node left, Node right) {
+			this.score = score;
+			this.seq = seq;
+			this.hash = hash;
+			this.ele = ele;
+			this.priority = priority;
+			this.left = left;
+			this.right = right;
+			this.size = 1 + size(left) + size(right);
+		}
+		
+		Node with(Node left, Node right) {
+			return new Node(score, seq, hash, ele, priority, left, right);
+		}
+		
+		static int size(Node n) {
+			return n == null ? 0 : n.size;
+		}
+	}
+	
+	/**
+	 * 一个已发布的版本
+	 */
+	static final class Version {
+		final Node byScore;
+		final Node byKey;
+		final long version;
+		
+		Version(Node byScore, Node byKey, long version) {
+			this.byScore = byScore;
+			this.byKey = byKey;
+			this.version = version;
+		}
+	}
+
+}
@@ -1,6 +1,7 @@
 package com.yiba.core.collect;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.platform.commons.util.ToStringBuilder;
@@ -123,6 +124,59 @@ public class ZSets {
 		return zset.rangeByScore(min, max);
 	}
 	
+	/**
+	 * 通过分数区间分页获取列表
+	 * @param key
+	 * @param min
+	 * @param max
+	 * @param offset
+	 * @param count
+	 * @return
+	 */
+	public static <E extends ZSetEle<K>, K> List<E> zrangebyscore(String key, long min, long max, int offset, int count) {
+		ZSet<E, K> zset = ZSet.lookupKey(key);
+		if (zset == null) {
+			return new ArrayList<>();
+		}
+		
+		return zset.rangeByScore(min, max, offset, count);
+	}
+	
+	/**
+	 * 通过分数区间倒序分页获取列表
+	 * @param key
+	 * @param max
+	 * @param min
+	 * @param offset
+	 * @param count
+	 * @return
+	 */
+	public static <E extends ZSetEle<K>, K> List<E> zrevrangebyscore(String key, long max, long min, int offset, int count) {
+		ZSet<E, K> zset = ZSet.lookupKey(key);
+		if (zset == null) {
+			return new ArrayList<>();
+		}
+		
+		return zset.revRangeByScore(max, min, offset, count);
+	}
+	
+	/**
+	 * 分批遍历
+	 * @param key
+	 * @param cursor	{@link ZSet#SCAN_BEGIN}开始
+	 * @param count
+	 * @param members
+	 * @return 下一次的游标，{@link ZSet#SCAN_BEGIN}表示结束
+	 */
+	public static <E extends ZSetEle<K>, K> long zscan(String key, long cursor, int count, List<E> members) {
+		ZSet<E, K> zset = ZSet.lookupKey(key);
+		if (zset == null) {
+			return ZSet.SCAN_BEGIN;
+		}
+		
+		return zset.scan(cursor, count, members);
+	}
+	
 	/**
 	 * 移除
 	 * @param key
@@ -137,6 +191,38 @@ public class ZSets {
 		return zset.remove(id);
 	}
 	
+	/**
+	 * 移除分数区间内的元素
+	 * @param key
+	 * @param min
+	 * @param max
+	 * @return 移除的个数
+	 */
+	public static <E extends ZSetEle<K>, K> int zremrangebyscore(String key, long min, long max) {
+		ZSet<E, K> zset = ZSet.lookupKey(key);
+		if (zset == null) {
+			return 0;
+		}
+		
+		return zset.removeRangeByScore(min, max);
+	}
+	
+	/**
+	 * 移除排名区间内的元素，排名从0开始，负数表示从末尾倒数
+	 * @param key
+	 * @param start
+	 * @param stop
+	 * @return 移除的个数
+	 */
+	public static <E extends ZSetEle<K>, K> int zremrangebyrank(String key, long start, long stop) {
+		ZSet<E, K> zset = ZSet.lookupKey(key);
+		if (zset == null) {
+			return 0;
+		}
+		
+		return zset.removeRangeByRank(start, stop);
+	}
+	
 	
 	
 	public static final boolean DEBUG_MSG = false;
@@ -489,6 +575,91 @@ public class ZSets {
 		return new GeoArea(steps, geohash, area, geohashNeighbors);
 	}
 	
+	/** 按密度选择格子时，最多覆盖的格子数 */
+	private static final int DENSITY_CELLS_MAX = 36;
+	
+	/** 一次rangeByScore的代价，折算为遍历的成员数 */
+	private static final int DENSITY_SCAN_COST = 8;
+	
+	/**
+	 * 按成员密度获取要搜索的score区间
+	 * 在按半径预估的step附近，每一层用覆盖包围盒的格子估算代价：合并后的扫描次数 * DENSITY_SCAN_COST + 估算的候选数，
+	 * 取代价最小的一层。密集处会选择更细更多的格子减少候选，稀疏处选择更粗更少的格子减少扫描。
+	 * @param x
+	 * @param y
+	 * @param radius_meters
+	 * @param density
+	 * @return 按score升序的[min, max]区间，两端都包含
+	 */
+	public static List<long[]> geohashRangesByDensity(double x, double y, double radius_meters, GeoDensity density) {
+		double[] bounds = geohashBoundingBox(x, y, radius_meters);
+		int estimate = geohashEstimateStepsByRadius(radius_meters);
+		
+		long[] best = null;
+		int bestSteps = 0;
+		double bestCost = Double.MAX_VALUE;
+		for (int steps = Math.max(1, estimate - 2); steps <= Math.min(GEO_STEP_MAX, estimate + 3); ++steps) {
+			long x0 = cellOf(bounds[0], GEO_X_MIN, GEO_X_MAX, steps);
+			long x1 = cellOf(bounds[1], GEO_X_MIN, GEO_X_MAX, steps);
+			long y0 = cellOf(bounds[2], GEO_Y_MIN, GEO_Y_MAX, steps);
+			long y1 = cellOf(bounds[3], GEO_Y_MIN, GEO_Y_MAX, steps);
+			if ((x1 - x0 + 1) * (y1 - y0 + 1) > DENSITY_CELLS_MAX) {
+				break;
+			}
+			
+			long[] cells = new long[(int) ((x1 - x0 + 1) * (y1 - y0 + 1))];
+			int count = 0;
+			double candidates = 0;
+			for (long cx = x0; cx <= x1; ++cx) {
+				for (long cy = y0; cy <= y1; ++cy) {
+					long geohash = interleave64(cx, cy);
+					candidates += density.estimate(geohash, steps);
+					cells[count++] = geohash;
+				}
+			}
+			Arrays.sort(cells);
+			int runs = 1;
+			for (int i = 1; i < count; ++i) {
+				if (cells[i] != cells[i - 1] + 1) {
+					runs++;
+				}
+			}
+			double cost = runs * DENSITY_SCAN_COST + candidates;
+			if (cost < bestCost) {
+				bestCost = cost;
+				best = cells;
+				bestSteps = steps;
+			}
+		}
+		
+		return mergeCellRanges(best, best.length, 52 - bestSteps * 2);
+	}
+	
+	/**
+	 * calcScore的逆运算，分值所在的最细格子
+	 * @param score
+	 * @return [x min, x max, y min, y max]
+	 */
+	public static double[] scoreDecode(long score) {
+		return geohashDecode(score >> (52 - GEO_STEP_MAX * 2), GEO_STEP_MAX);
+	}
+	
+	/**
+	 * 分值所在的最细格子与圆是否相交
+	 * score只保留了格子，用格子判断，不会漏掉半径内的成员。
+	 * @param score
+	 * @param x
+	 * @param y
+	 * @param radius
+	 * @return
+	 */
+	public static boolean scoreInRadius(long score, double x, double y, double radius) {
+		double[] area = scoreDecode(score);
+		double dx = Math.max(0, Math.max(area[0] - x, x - area[1]));
+		double dy = Math.max(0, Math.max(area[2] - y, y - area[3]));
+		return dx * dx + dy * dy <= radius * radius;
+	}
+	
 	/**
 	 * geohash->score_min,score_max
 	 * @param geohash
@@ -516,6 +687,447 @@ public class ZSets {
 		return geohash;
 	}
 	
+	//-=-=-=-=-=-=-=-=-=-=-=-=Hilbert曲线相关-=-=-=-=-=-=-=-=-=-=-=-=//
+	// 另一种score编码：格子按Hilbert曲线编号。与geohash一样，step层的格子是step+1层4个格子的前缀，
+	// 一个格子对应一段连续的score；不同的是曲线上相邻的格子在空间上一定相邻，附近的格子编号往往连续，
+	// 查找时相邻格子的score区间可以合并成一次rangeByScore。
+	// 同一个ZSet中只能使用一种编码，Hilbert编码的ZSet用calcScoreHilbert计算分值，用georadiusHilbert查找。
+	
+	/** Hilbert查找时最多覆盖的格子数，格子越多越贴合包围盒，区间合并后扫描次数仍然很少 */
+	private static final int HILBERT_CELLS_MAX = 16;
+	
+	/**
+	 * 计算Hilbert编码的分值
+	 * @return
+	 */
+	public static long calcScoreHilbert(double x, double y) {
+		long hash = hilbertEncode(x, y, GEO_STEP_MAX);
+		return geohashAlign52Bits(hash, GEO_STEP_MAX);
+	}
+	
+	/**
+	 * 根据step（bits精度）计算Hilbert编号
+	 * @param x
+	 * @param y
+	 * @param step
+	 * @return
+	 */
+	public static long hilbertEncode(double x, double y, int step) {
+		if (step > 32 || step <= 0) {
+			return 0;
+		}
+		if (x < GEO_X_MIN || x > GEO_X_MAX || y < GEO_Y_MIN || y > GEO_Y_MAX) {
+			return 0;
+		}
+		return hilbertXY2D(cellOf(x, GEO_X_MIN, GEO_X_MAX, step), cellOf(y, GEO_Y_MIN, GEO_Y_MAX, step), step);
+	}
+	
+	/**
+	 * Hilbert编号对应的区域
+	 * @param hash
+	 * @param step
+	 * @return [x min, x max, y min, y max]
+	 */
+	public static double[] hilbertDecode(long hash, int step) {
+		long[] xy = hilbertD2XY(hash, step);
+		double[] area = new double[4];
+		double x_scale = GEO_X_MAX - GEO_X_MIN;
+		double y_scale = GEO_Y_MAX - GEO_Y_MIN;
+		
+		area[0] = GEO_X_MIN + (xy[0] * 1.0d / (1L << step)) * x_scale;			//x min
+		area[1] = GEO_X_MIN + ((xy[0] + 1) * 1.0d / (1L << step)) * x_scale;	//x max
+		area[2] = GEO_Y_MIN + (xy[1] * 1.0d / (1L << step)) * y_scale;			//y min
+		area[3] = GEO_Y_MIN + ((xy[1] + 1) * 1.0d / (1L << step)) * y_scale;	//y max
+		return area;
+	}
+	
+	/**
+	 * 获取临近8个方向+自己的Hilbert编号，排列与{@link #geohashNeighbors(long, int)}相同
+	 * 超出地图的方向为-1，不会像geohash那样绕回到另一边。
+	 * @param hash
+	 * @param step
+	 * @return
+	 */
+	public static long[] hilbertNeighbors(long hash, int step) {
+		long[] xy = hilbertD2XY(hash, step);
+		long n = 1L << step;
+		long[] neighbors = new long[9];
+		int index = 0;
+		for (int dx = -1; dx <= 1; ++dx) {
+			for (int dy = -1; dy <= 1; ++dy) {
+				long x = xy[0] + dx;
+				long y = xy[1] + dy;
+				if (x < 0 || x >= n || y < 0 || y >= n) {
+					neighbors[index++] = -1;
+				}
+				else {
+					neighbors[index++] = hilbertXY2D(x, y, step);
+				}
+			}
+		}
+		return neighbors;
+	}
+	
+	/**
+	 * 通过半径获取Hilbert编码下要搜索的score区间
+	 * 从按半径预估的step开始，选择覆盖包围盒的格子数不超过{@link #HILBERT_CELLS_MAX}的最细一层，
+	 * 再把这些格子按score排序，首尾相接的区间合并。
+	 * 格子比geohash的3x3更贴合包围盒，候选更少；合并后扫描次数一般只有2~4次。
+	 * @param x
+	 * @param y
+	 * @param radius_meters
+	 * @return 按score升序的[min, max]区间，两端都包含
+	 */
+	public static List<long[]> hilbertRangesByRadius(double x, double y, double radius_meters) {
+		double[] bounds = geohashBoundingBox(x, y, radius_meters);
+		int steps = geohashEstimateStepsByRadius(radius_meters);
+		while (steps < GEO_STEP_MAX && cellsOfBounds(bounds, steps + 1) <= HILBERT_CELLS_MAX) {
+			steps++;
+		}
+		
+		long x0 = cellOf(bounds[0], GEO_X_MIN, GEO_X_MAX, steps);
+		long x1 = cellOf(bounds[1], GEO_X_MIN, GEO_X_MAX, steps);
+		long y0 = cellOf(bounds[2], GEO_Y_MIN, GEO_Y_MAX, steps);
+		long y1 = cellOf(bounds[3], GEO_Y_MIN, GEO_Y_MAX, steps);
+		long[] cells = new long[(int) ((x1 - x0 + 1) * (y1 - y0 + 1))];
+		int count = 0;
+		for (long cx = x0; cx <= x1; ++cx) {
+			for (long cy = y0; cy <= y1; ++cy) {
+				cells[count++] = hilbertXY2D(cx, cy, steps);
+			}
+		}
+		Arrays.sort(cells);
+		return mergeCellRanges(cells, count, 52 - steps * 2);
+	}
+		
+	/**
+	 * 已排序的格子编号中，连续的合并为一个score区间
+	 * 格子编号左移shift位为格子的最小score，2D编码的step层为52 - step * 2，3D编码为(GEO3D_STEP_MAX - step) * 3。
+	 * @param cells	升序的格子编号，只使用前count个
+	 * @param count
+	 * @param shift
+	 * @return 按score升序的[min, max]区间，两端都包含
+	 */
+	private static List<long[]> mergeCellRanges(long[] cells, int count, int shift) {
+		List<long[]> ranges = new ArrayList<>();
+		if (count == 0) {
+			return ranges;
+		}
+		long start = cells[0];
+		long end = cells[0];
+		for (int i = 1; i < count; ++i) {
+			if (cells[i] != end + 1) {
+				ranges.add(new long[] {start << shift, ((end + 1) << shift) - 1});
+				start = cells[i];
+			}
+			end = cells[i];
+		}
+		ranges.add(new long[] {start << shift, ((end + 1) << shift) - 1});
+		return ranges;
+	}
+	
+	/**
+	 * 包围盒在step层覆盖的格子数
+	 */
+	private static long cellsOfBounds(double[] bounds, int step) {
+		long w = cellOf(bounds[1], GEO_X_MIN, GEO_X_MAX, step) - cellOf(bounds[0], GEO_X_MIN, GEO_X_MAX, step) + 1;
+		long h = cellOf(bounds[3], GEO_Y_MIN, GEO_Y_MAX, step) - cellOf(bounds[2], GEO_Y_MIN, GEO_Y_MAX, step) + 1;
+		return w * h;
+	}
+	
+	/**
+	 * 坐标在step层的格子序号，超出地图的取边缘的格子
+	 */
+	private static long cellOf(double v, double min, double max, int step) {
+		long n = 1L << step;
+		long c = (long) Math.floor((v - min) / (max - min) * n);
+		return c < 0 ? 0 : (c >= n ? n - 1 : c);
+	}
+	
+	/**
+	 * 格子坐标转为Hilbert编号
+	 */
+	private static long hilbertXY2D(long x, long y, int step) {
+		long n = 1L << step;
+		long d = 0;
+		for (long s = n >> 1; s > 0; s >>= 1) {
+			int rx = (x & s) != 0 ? 1 : 0;
+			int ry = (y & s) != 0 ? 1 : 0;
+			d += s * s * ((3 * rx) ^ ry);
+			// 旋转到子格子的方向
+			if (ry == 0) {
+				if (rx == 1) {
+					x = n - 1 - x;
+					y = n - 1 - y;
+				}
+				long t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+	
+	/**
+	 * Hilbert编号转为格子坐标
+	 */
+	private static long[] hilbertD2XY(long d, int step) {
+		long n = 1L << step;
+		long x = 0;
+		long y = 0;
+		for (long s = 1; s < n; s <<= 1) {
+			long rx = 1 & (d >> 1);
+			long ry = 1 & (d ^ rx);
+			if (ry == 0) {
+				if (rx == 1) {
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				long t = x;
+				x = y;
+				y = t;
+			}
+			x += s * rx;
+			y += s * ry;
+			d >>= 2;
+		}
+		return new long[] {x, y};
+	}
+	
+	//-=-=-=-=-=-=-=-=-=-=-=-=3D geohash相关-=-=-=-=-=-=-=-=-=-=-=-=//
+	// 包含高度的编码：x、y、z各17位交错为51位score，格子为立方体。
+	// z的范围与x、y相同，同一个ZSet中只能使用一种编码，3D编码的ZSet用calcScore3D计算分值，用geoSphere/geoBox3D查找。
+	private static final double GEO_Z_MAX = 10000;
+	private static final double GEO_Z_MIN = -10000;
+	
+	/* 17*3 = 51 bits. */
+	private static final int GEO3D_STEP_MAX = 17;
+	
+	/** geoBox3D最多覆盖的格子数 */
+	private static final int GEO3D_CELLS_MAX = 64;
+	
+	/**
+	 * 计算3D分值
+	 * @return
+	 */
+	public static long calcScore3D(double x, double y, double z) {
+		long geohash = geohashEncode3D(x, y, z, GEO3D_STEP_MAX);
+		return geohashAlign51Bits(geohash, GEO3D_STEP_MAX);
+	}
+	
+	/**
+	 * 根据step（每个轴的bits精度）计算3D geohash值
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param step
+	 * @return
+	 */
+	public static long geohashEncode3D(double x, double y, double z, int step) {
+		if (step > GEO3D_STEP_MAX || step <= 0) {
+			return 0;
+		}
+		if (x < GEO_X_MIN || x > GEO_X_MAX || y < GEO_Y_MIN || y > GEO_Y_MAX || z < GEO_Z_MIN || z > GEO_Z_MAX) {
+			return 0;
+		}
+		return interleave3(cellOf(x, GEO_X_MIN, GEO_X_MAX, step), cellOf(y, GEO_Y_MIN, GEO_Y_MAX, step),
+				cellOf(z, GEO_Z_MIN, GEO_Z_MAX, step));
+	}
+	
+	/**
+	 * 3D geohash对应的区域
+	 * @param geohash
+	 * @param step
+	 * @return [x min, x max, y min, y max, z min, z max]
+	 */
+	public static double[] geohashDecode3D(long geohash, int step) {
+		double[] area = new double[6];
+		double n = 1L << step;
+		long ix = compact3(geohash);
+		long iy = compact3(geohash >> 1);
+		long iz = compact3(geohash >> 2);
+		area[0] = GEO_X_MIN + ix / n * (GEO_X_MAX - GEO_X_MIN);
+		area[1] = GEO_X_MIN + (ix + 1) / n * (GEO_X_MAX - GEO_X_MIN);
+		area[2] = GEO_Y_MIN + iy / n * (GEO_Y_MAX - GEO_Y_MIN);
+		area[3] = GEO_Y_MIN + (iy + 1) / n * (GEO_Y_MAX - GEO_Y_MIN);
+		area[4] = GEO_Z_MIN + iz / n * (GEO_Z_MAX - GEO_Z_MIN);
+		area[5] = GEO_Z_MIN + (iz + 1) / n * (GEO_Z_MAX - GEO_Z_MIN);
+		return area;
+	}
+	
+	/**
+	 * 获取临近26个方向+自己的3D geohash
+	 * 下标为(dx + 1) * 9 + (dy + 1) * 3 + (dz + 1)，自己在13。超出地图的方向为-1。
+	 * @param geohash
+	 * @param step
+	 * @return
+	 */
+	public static long[] geohashNeighbors3D(long geohash, int step) {
+		long n = 1L << step;
+		long ix = compact3(geohash);
+		long iy = compact3(geohash >> 1);
+		long iz = compact3(geohash >> 2);
+		long[] neighbors = new long[27];
+		int index = 0;
+		for (int dx = -1; dx <= 1; ++dx) {
+			for (int dy = -1; dy <= 1; ++dy) {
+				for (int dz = -1; dz <= 1; ++dz) {
+					long x = ix + dx;
+					long y = iy + dy;
+					long z = iz + dz;
+					if (x < 0 || x >= n || y < 0 || y >= n || z < 0 || z >= n) {
+						neighbors[index++] = -1;
+					}
+					else {
+						neighbors[index++] = interleave3(x, y, z);
+					}
+				}
+			}
+		}
+		return neighbors;
+	}
+	
+	/**
+	 * 球形查找要搜索的score区间
+	 * 按半径预估的格子边长大于半径，球一定在中心格子和26个临近格子内；去掉与球不相交的格子后，编号连续的合并。
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param radius
+	 * @return 按score升序的[min, max]区间，两端都包含
+	 */
+	public static List<long[]> geoSphereRanges(double x, double y, double z, double radius) {
+		int steps = Math.min(geohashEstimateStepsByRadius(radius), GEO3D_STEP_MAX);
+		long center = interleave3(cellOf(x, GEO_X_MIN, GEO_X_MAX, steps), cellOf(y, GEO_Y_MIN, GEO_Y_MAX, steps),
+				cellOf(z, GEO_Z_MIN, GEO_Z_MAX, steps));
+		long[] neighbors = geohashNeighbors3D(center, steps);
+		long[] cells = new long[neighbors.length];
+		int count = 0;
+		for (long geohash : neighbors) {
+			if (geohash != -1 && sphereIntersects(geohashDecode3D(geohash, steps), x, y, z, radius)) {
+				cells[count++] = geohash;
+			}
+		}
+		return mergeCells3D(cells, count, steps);
+	}
+	
+	/**
+	 * 长方体查找要搜索的score区间
+	 * 选择覆盖长方体的格子数不超过{@link #GEO3D_CELLS_MAX}的最细一层，编号连续的合并。
+	 * @param bounds	[x min, x max, y min, y max, z min, z max]
+	 * @return 按score升序的[min, max]区间，两端都包含
+	 */
+	public static List<long[]> geoBox3DRanges(double[] bounds) {
+		int steps = 1;
+		while (steps < GEO3D_STEP_MAX && cellsOfBounds3D(bounds, steps + 1) <= GEO3D_CELLS_MAX) {
+			steps++;
+		}
+		long x0 = cellOf(bounds[0], GEO_X_MIN, GEO_X_MAX, steps);
+		long x1 = cellOf(bounds[1], GEO_X_MIN, GEO_X_MAX, steps);
+		long y0 = cellOf(bounds[2], GEO_Y_MIN, GEO_Y_MAX, steps);
+		long y1 = cellOf(bounds[3], GEO_Y_MIN, GEO_Y_MAX, steps);
+		long z0 = cellOf(bounds[4], GEO_Z_MIN, GEO_Z_MAX, steps);
+		long z1 = cellOf(bounds[5], GEO_Z_MIN, GEO_Z_MAX, steps);
+		long[] cells = new long[(int) ((x1 - x0 + 1) * (y1 - y0 + 1) * (z1 - z0 + 1))];
+		int count = 0;
+		for (long cx = x0; cx <= x1; ++cx) {
+			for (long cy = y0; cy <= y1; ++cy) {
+				for (long cz = z0; cz <= z1; ++cz) {
+					cells[count++] = interleave3(cx, cy, cz);
+				}
+			}
+		}
+		return mergeCells3D(cells, count, steps);
+	}
+	
+	/**
+	 * 分值所在的最细格子与球是否相交
+	 * score只保留了格子，用格子判断，误差不超过一个格子（约0.15）。
+	 * @param score
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param radius
+	 * @return
+	 */
+	public static boolean scoreInSphere3D(long score, double x, double y, double z, double radius) {
+		return sphereIntersects(geohashDecode3D(score, GEO3D_STEP_MAX), x, y, z, radius);
+	}
+	
+	/**
+	 * 分值所在的最细格子与长方体是否相交
+	 * @param score
+	 * @param bounds	[x min, x max, y min, y max, z min, z max]
+	 * @return
+	 */
+	public static boolean scoreInBox3D(long score, double[] bounds) {
+		double[] area = geohashDecode3D(score, GEO3D_STEP_MAX);
+		return area[0] <= bounds[1] && area[1] >= bounds[0]
+				&& area[2] <= bounds[3] && area[3] >= bounds[2]
+				&& area[4] <= bounds[5] && area[5] >= bounds[4];
+	}
+	
+	/**
+	 * 自定义的3D geohash为17*3=51位，转化为zset的score。
+	 * @param geohash
+	 * @param step
+	 * @return
+	 */
+	public static long geohashAlign51Bits(long geohash, int step) {
+		return geohash << ((GEO3D_STEP_MAX - step) * 3);
+	}
+	
+	private static boolean sphereIntersects(double[] area, double x, double y, double z, double radius) {
+		double dx = Math.max(0, Math.max(area[0] - x, x - area[1]));
+		double dy = Math.max(0, Math.max(area[2] - y, y - area[3]));
+		double dz = Math.max(0, Math.max(area[4] - z, z - area[5]));
+		return dx * dx + dy * dy + dz * dz <= radius * radius;
+	}
+	
+	private static long cellsOfBounds3D(double[] bounds, int step) {
+		long w = cellOf(bounds[1], GEO_X_MIN, GEO_X_MAX, step) - cellOf(bounds[0], GEO_X_MIN, GEO_X_MAX, step) + 1;
+		long h = cellOf(bounds[3], GEO_Y_MIN, GEO_Y_MAX, step) - cellOf(bounds[2], GEO_Y_MIN, GEO_Y_MAX, step) + 1;
+		long d = cellOf(bounds[5], GEO_Z_MIN, GEO_Z_MAX, step) - cellOf(bounds[4], GEO_Z_MIN, GEO_Z_MAX, step) + 1;
+		return w * h * d;
+	}
+	
+	/**
+	 * step层的格子按编号排序，连续的合并为score区间
+	 */
+	private static List<long[]> mergeCells3D(long[] cells, int count, int step) {
+		Arrays.sort(cells, 0, count);
+		return mergeCellRanges(cells, count, (GEO3D_STEP_MAX - step) * 3);
+	}
+	
+	/** x、y、z的低21位每位之间插入两个0 */
+	private static long spread3(long v) {
+		v &= 0x1FFFFFL;
+		v = (v | (v << 32)) & 0x001F00000000FFFFL;
+		v = (v | (v << 16)) & 0x001F0000FF0000FFL;
+		v = (v | (v << 8)) & 0x100F00F00F00F00FL;
+		v = (v | (v << 4)) & 0x10C30C30C30C30C3L;
+		v = (v | (v << 2)) & 0x1249249249249249L;
+		return v;
+	}
+	
+	/** spread3的逆运算 */
+	private static long compact3(long v) {
+		v &= 0x1249249249249249L;
+		v = (v | (v >> 2)) & 0x10C30C30C30C30C3L;
+		v = (v | (v >> 4)) & 0x100F00F00F00F00FL;
+		v = (v | (v >> 8)) & 0x001F0000FF0000FFL;
+		v = (v | (v >> 16)) & 0x001F00000000FFFFL;
+		v = (v | (v >> 32)) & 0x1FFFFFL;
+		return v;
+	}
+	
+	/**
+	 * hash = [Z][Y][X]
+	 */
+	private static long interleave3(long x, long y, long z) {
+		return spread3(x) | (spread3(y) << 1) | (spread3(z) << 2);
+	}
+	
 	public static class GeoArea {
 		public int steps;
 		public long geohash;
@@ -0,0 +1,149 @@
+package com.yiba.core.collect;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 3D geo编码和查找的检查
+ * calcScore3D所在的格子包含原坐标；geoSphere、geoBox3D的结果与逐个判断全部成员的结果一致，
+ * 真实坐标在范围内的成员不会漏掉，返回的成员离范围不超过一个格子。
+ * 没有测试框架，直接运行main，失败时抛出AssertionError。
+ * @author U-Demon
+ */
+public class Geo3DTest {
+	
+	private static final int POINTS = 50000;
+	private static final int QUERIES = 2000;
+	private static final double MAX = 10000;
+	
+	/** 最细格子的对角线长度，17位时边长约0.15 */
+	private static final double CELL_DIAGONAL = Math.sqrt(3) * (2 * MAX / (1 << 17));
+	
+	public static void main(String[] args) {
+		Random random = new Random(35);
+		ZSet<Point, Integer> zset = new ZSet<>("geo3d");
+		Point[] points = new Point[POINTS];
+		for (int i = 0; i < POINTS; ++i) {
+			Point p = new Point(i, coord(random), coord(random), coord(random));
+			double[] area = ZSets.geohashDecode3D(p.getScore(), 17);
+			check(area[0] <= p.x && p.x <= area[1] && area[2] <= p.y && p.y <= area[3] && area[4] <= p.z && p.z <= area[5],
+					"cell of " + p);
+			points[i] = p;
+			zset.add(p);
+		}
+		
+		for (int q = 0; q < QUERIES; ++q) {
+			double x = coord(random);
+			double y = coord(random);
+			double z = coord(random);
+			double radius = radius(random);
+			Set<Integer> found = ids(zset.geoSphere(x, y, z, radius));
+			Set<Integer> expect = new HashSet<>();
+			for (Point p : points) {
+				double d = Math.sqrt(sq(p.x - x) + sq(p.y - y) + sq(p.z - z));
+				if (d <= radius) {
+					check(found.contains(p.id), "sphere missed " + p + " query " + x + "," + y + "," + z + " r=" + radius);
+				}
+				if (ZSets.scoreInSphere3D(p.getScore(), x, y, z, radius)) {
+					expect.add(p.id);
+					check(d <= radius + CELL_DIAGONAL, "sphere too far " + p);
+				}
+			}
+			check(found.equals(expect), "sphere " + found.size() + " != " + expect.size());
+			
+			double[] bounds = new double[6];
+			for (int a = 0; a < 3; ++a) {
+				double c = coord(random);
+				double r = radius(random);
+				bounds[a * 2] = Math.max(-MAX, c - r);
+				bounds[a * 2 + 1] = Math.min(MAX, c + r);
+			}
+			found = ids(zset.geoBox3D(bounds));
+			expect.clear();
+			for (Point p : points) {
+				if (inBox(p, bounds, 0)) {
+					check(found.contains(p.id), "box missed " + p);
+				}
+				if (ZSets.scoreInBox3D(p.getScore(), bounds)) {
+					expect.add(p.id);
+					check(inBox(p, bounds, CELL_DIAGONAL), "box too far " + p);
+				}
+			}
+			check(found.equals(expect), "box " + found.size() + " != " + expect.size());
+		}
+		System.out.println("Geo3DTest ok");
+	}
+	
+	private static double coord(Random random) {
+		return (random.nextDouble() * 2 - 1) * MAX;
+	}
+	
+	/**
+	 * 小半径为主，偶尔很大
+	 */
+	private static double radius(Random random) {
+		return random.nextInt(20) == 0 ? random.nextDouble() * 5000 : random.nextDouble() * 500;
+	}
+	
+	private static boolean inBox(Point p, double[] bounds, double slack) {
+		return bounds[0] - slack <= p.x && p.x <= bounds[1] + slack
+				&& bounds[2] - slack <= p.y && p.y <= bounds[3] + slack
+				&& bounds[4] - slack <= p.z && p.z <= bounds[5] + slack;
+	}
+	
+	private static double sq(double v) {
+		return v * v;
+	}
+	
+	private static Set<Integer> ids(List<Point> members) {
+		Set<Integer> set = new HashSet<>();
+		for (Point p : members) {
+			check(set.add(p.id), "duplicate " + p);
+		}
+		return set;
+	}
+	
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+	
+	private static class Point extends ZSetEle<Integer> {
+		final int id;
+		final double x;
+		final double y;
+		final double z;
+		
+		Point(int id, double x, double y, double z) {
+			this.id = id;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.score = ZSets.calcScore3D(x, y, z);
+		}
+		
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Point && ((Point) obj).id == id;
+		}
+		
+		@Override
+		public String toString() {
+			return id + "(" + x + "," + y + "," + z + ")";
+		}
+	}
+
+}
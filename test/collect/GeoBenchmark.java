@@ -0,0 +1,117 @@
+package com.yiba.core.collect;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * geo查找的性能测试
+ * 同样的随机点分别用geohash和Hilbert编码加入两个ZSet，对比每次查找的rangeByScore次数、候选个数、误判个数和耗时。
+ * @author U-Demon
+ */
+public class GeoBenchmark {
+	
+	private static final int POINTS = 200000;
+	
+	private static final int QUERIES = 5000;
+	
+	private static final double[] RADIUS = {20, 100, 500, 1000};
+	
+	/**
+	 * 性能测试
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Random random = new Random(1);
+		ZSet<Point, Integer> morton = new ZSet<>(null);
+		ZSet<Point, Integer> hilbert = new ZSet<>(null);
+		for (int i = 0; i < POINTS; ++i) {
+			double x = random.nextDouble() * 19998 - 9999;
+			double y = random.nextDouble() * 19998 - 9999;
+			morton.add(new Point(i, x, y, ZSets.calcScore(x, y)));
+			hilbert.add(new Point(i, x, y, ZSets.calcScoreHilbert(x, y)));
+		}
+		
+		for (double radius : RADIUS) {
+			double[][] centers = new double[QUERIES][];
+			for (int i = 0; i < QUERIES; ++i) {
+				centers[i] = new double[] {random.nextDouble() * 19998 - 9999, random.nextDouble() * 19998 - 9999};
+			}
+			
+			long scans = 0;
+			long candidates = 0;
+			long hits = 0;
+			long curr = System.nanoTime();
+			for (double[] c : centers) {
+				ZSets.GeoArea area = ZSets.geohashGetAreasByRadius(c[0], c[1], radius);
+				long last_processed = -1;
+				for (long geohash : area.geohashNeighbors) {
+					if (geohash != -1 && geohash != last_processed) {
+						scans++;
+						last_processed = geohash;
+					}
+				}
+				List<Point> list = morton.georadius(c[0], c[1], radius);
+				candidates += list.size();
+				hits += countInRadius(list, c[0], c[1], radius);
+			}
+			print("geohash", radius, scans, candidates, hits, System.nanoTime() - curr);
+			
+			scans = 0;
+			candidates = 0;
+			hits = 0;
+			curr = System.nanoTime();
+			for (double[] c : centers) {
+				scans += ZSets.hilbertRangesByRadius(c[0], c[1], radius).size();
+				List<Point> list = hilbert.georadiusHilbert(c[0], c[1], radius);
+				candidates += list.size();
+				hits += countInRadius(list, c[0], c[1], radius);
+			}
+			print("hilbert", radius, scans, candidates, hits, System.nanoTime() - curr);
+		}
+	}
+	
+	private static int countInRadius(List<Point> list, double x, double y, double radius) {
+		int count = 0;
+		for (Point p : list) {
+			if (ZSets.geohashGetDistance(x, y, p.x, p.y) <= radius) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	private static void print(String name, double radius, long scans, long candidates, long hits, long nanos) {
+		System.out.println(String.format("%-8s radius=%-6.0f scans/query=%.2f candidates/query=%.1f hits/query=%.1f false positive=%.1f%% time=%dms",
+				name, radius, scans * 1.0 / QUERIES, candidates * 1.0 / QUERIES, hits * 1.0 / QUERIES,
+				candidates == 0 ? 0 : (candidates - hits) * 100.0 / candidates, nanos / 1000000));
+	}
+	
+	private static class Point extends ZSetEle<Integer> {
+		final int id;
+		final double x;
+		final double y;
+		
+		Point(int id, double x, double y, long score) {
+			this.id = id;
+			this.x = x;
+			this.y = y;
+			this.score = score;
+		}
+		
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Point && ((Point) obj).id == id;
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+package com.yiba.core.collect;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 按密度选择格子的georadius的检查
+ * 成员一部分聚集在几个热点、一部分均匀分布，另有一些不是geo分值的成员。随机修改后与逐个判断全部成员对照：
+ * 真实距离在半径内的成员不会漏掉，结果与按格子判断的结果一致，不是geo分值的成员不计数也不返回。
+ * 没有测试框架，直接运行main，失败时抛出AssertionError。
+ * @author U-Demon
+ */
+public class GeoDensityTest {
+	
+	private static final int POINTS = 20000;
+	private static final int QUERIES = 2000;
+	private static final double MAX = 10000;
+	private static final int LEVELS = 8;
+	
+	/** 不是geo分值：负数和超过52位的 */
+	private static final long[] NON_GEO = {-1, -12345, Long.MIN_VALUE, 1L << 52, (1L << 52) + 7, Long.MAX_VALUE};
+	
+	private static final double[][] HOTSPOTS = {{-3000, 2500}, {4000, -4000}, {100, 100}};
+	
+	public static void main(String[] args) {
+		Random random = new Random(38);
+		ZSet<Point, Integer> zset = new ZSet<>("density");
+		Point[] points = new Point[POINTS];
+		int nonGeoId = POINTS;
+		// 一半在开启前加入，开启时从zsl建立计数
+		for (int i = 0; i < POINTS / 2; ++i) {
+			points[i] = randomPoint(i, random);
+			zset.add(points[i]);
+		}
+		for (long score : NON_GEO) {
+			zset.add(new Point(nonGeoId++, score));
+		}
+		zset.enableGeoDensity(LEVELS);
+		for (int i = POINTS / 2; i < POINTS; ++i) {
+			points[i] = randomPoint(i, random);
+			zset.add(points[i]);
+		}
+		for (long score : NON_GEO) {
+			zset.add(new Point(nonGeoId++, score));
+		}
+		checkCounts(zset, points);
+		
+		for (int q = 0; q < QUERIES; ++q) {
+			// 移动、移除后重新加入、暂时改为不是geo的分值
+			for (int k = 0; k < 20; ++k) {
+				int id = random.nextInt(POINTS);
+				Point p = randomPoint(id, random);
+				switch (random.nextInt(3)) {
+				case 0:
+					zset.add(p.getScore(), zset.get(id), false, false, false);
+					break;
+				case 1:
+					zset.remove(id);
+					zset.add(p.getScore(), p, false, false, false);
+					break;
+				default:
+					zset.add(NON_GEO[random.nextInt(NON_GEO.length)], zset.get(id), false, false, false);
+					zset.add(p.getScore(), zset.get(id), false, false, false);
+					break;
+				}
+				Point m = zset.get(id);
+				m.x = p.x;
+				m.y = p.y;
+				points[id] = m;
+			}
+			
+			double[] c = random.nextInt(2) == 0 ? HOTSPOTS[random.nextInt(HOTSPOTS.length)] : new double[] {coord(random), coord(random)};
+			double radius = random.nextInt(10) == 0 ? 500 + random.nextDouble() * 3000 : 5 + random.nextDouble() * 300;
+			Set<Integer> found = new HashSet<>();
+			for (Point p : zset.georadius(c[0], c[1], radius)) {
+				check(found.add(p.id), "duplicate " + p.id);
+				check(p.id < POINTS, "non-geo member returned " + p.id);
+			}
+			Set<Integer> expect = new HashSet<>();
+			for (Point p : points) {
+				if (Math.hypot(p.x - c[0], p.y - c[1]) <= radius) {
+					check(found.contains(p.id), "missed " + p.id + " at " + p.x + "," + p.y + " query " + c[0] + "," + c[1] + " r=" + radius);
+				}
+				if (ZSets.scoreInRadius(p.getScore(), c[0], c[1], radius)) {
+					expect.add(p.id);
+				}
+			}
+			check(found.equals(expect), "query " + q + " found " + found.size() + " != " + expect.size());
+		}
+		checkCounts(zset, points);
+		check(zset.getGeoDensity().getQueries() == QUERIES, "queries");
+		System.out.println("GeoDensityTest ok");
+	}
+	
+	/**
+	 * 各层计数之和等于geo成员数，不是geo分值的成员不计入
+	 */
+	private static void checkCounts(ZSet<Point, Integer> zset, Point[] points) {
+		GeoDensity density = zset.getGeoDensity();
+		check(zset.size() == POINTS + NON_GEO.length * 2, "size " + zset.size());
+		for (int s = 1; s <= LEVELS; s += LEVELS - 1) {
+			double total = 0;
+			for (long cell = 0; cell < 1L << (s * 2); ++cell) {
+				total += density.estimate(cell, s);
+			}
+			check(total == POINTS, "level " + s + " count " + total);
+		}
+		// 一个具体格子的计数
+		Point p = points[0];
+		long cell = p.getScore() >>> (52 - LEVELS * 2);
+		int n = 0;
+		for (Point o : points) {
+			if (o.getScore() >>> (52 - LEVELS * 2) == cell) {
+				n++;
+			}
+		}
+		check(density.estimate(cell, LEVELS) == n, "cell count");
+	}
+	
+	private static Point randomPoint(int id, Random random) {
+		double x;
+		double y;
+		if (random.nextInt(3) == 0) {
+			x = coord(random);
+			y = coord(random);
+		}
+		else {
+			double[] h = HOTSPOTS[random.nextInt(HOTSPOTS.length)];
+			x = Math.max(-MAX, Math.min(MAX, h[0] + random.nextGaussian() * 100));
+			y = Math.max(-MAX, Math.min(MAX, h[1] + random.nextGaussian() * 100));
+		}
+		Point p = new Point(id, ZSets.calcScore(x, y));
+		p.x = x;
+		p.y = y;
+		return p;
+	}
+	
+	private static double coord(Random random) {
+		return (random.nextDouble() * 2 - 1) * MAX;
+	}
+	
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+	
+	private static class Point extends ZSetEle<Integer> {
+		final int id;
+		double x;
+		double y;
+		
+		Point(int id, long score) {
+			this.id = id;
+			this.score = score;
+		}
+		
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Point && ((Point) obj).id == id;
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+package com.yiba.core.collect;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * georadius区域查询缓存的检查
+ * 缓存的区域内有修改时失效，区域外的修改不影响命中；开启缓存的ZSet与不开启的ZSet做同样的随机修改，georadius结果一致。
+ * 没有测试框架，直接运行main，失败时抛出AssertionError。
+ * @author U-Demon
+ */
+public class GeoQueryCacheTest {
+	
+	private static final int POINTS = 5000;
+	private static final int OPS = 20000;
+	private static final double RANGE = 2000;
+	
+	public static void main(String[] args) {
+		invalidation();
+		sameResults();
+		System.out.println("GeoQueryCacheTest ok");
+	}
+	
+	/**
+	 * 区域内的修改使缓存失效，区域外的不影响
+	 */
+	private static void invalidation() {
+		int step = 6;
+		GeoQueryCache<Member> cache = new GeoQueryCache<>(16, 8);
+		long geohash = ZSets.geohashEncode(100, 100, step);
+		long[] scores = ZSets.scoresOfGeoHashBox(geohash, step);
+		List<Member> members = new ArrayList<>();
+		members.add(new Member(1, ZSets.calcScore(100, 100)));
+		
+		check(cache.get(geohash, step, scores) == null && cache.getMisses() == 1, "empty cache");
+		cache.put(geohash, step, scores, members);
+		check(cache.get(geohash, step, scores) == members && cache.getHits() == 1, "hit without copy");
+		
+		// 远处的修改
+		cache.touch(ZSets.calcScore(-5000, 5000));
+		cache.touch(ZSets.calcScore(5000, -5000));
+		check(cache.get(geohash, step, scores) == members, "write outside the box");
+		check(cache.getInvalidations() == 0, "no invalidation");
+		
+		// 区域内的修改，包括区域的第一个分值
+		cache.touch(ZSets.calcScore(100, 100));
+		check(cache.get(geohash, step, scores) == null && cache.getInvalidations() == 1, "write inside the box");
+		check(cache.size() == 0, "invalid box removed");
+		cache.put(geohash, step, scores, members);
+		cache.touch(scores[0]);
+		check(cache.get(geohash, step, scores) == null && cache.getInvalidations() == 2, "write at the box start");
+		
+		// 比版本号层数更细的区域，同一个最细格子内、区域外的修改也会失效，不会漏掉
+		int fine = 12;
+		long fineHash = ZSets.geohashEncode(100, 100, fine);
+		long[] fineScores = ZSets.scoresOfGeoHashBox(fineHash, fine);
+		cache.put(fineHash, fine, fineScores, members);
+		cache.touch(fineScores[1] - 1);
+		check(cache.get(fineHash, fine, fineScores) == null, "write inside a finer box");
+	}
+	
+	/**
+	 * 开启缓存与不开启的结果一致，重复的查找能命中
+	 */
+	private static void sameResults() {
+		Random random = new Random(33);
+		ZSet<Member, Integer> cached = new ZSet<>("cached");
+		ZSet<Member, Integer> plain = new ZSet<>("plain");
+		cached.enableGeoCache(256, 8);
+		for (int i = 0; i < POINTS; ++i) {
+			long score = ZSets.calcScore(coord(random), coord(random));
+			cached.add(new Member(i, score));
+			plain.add(new Member(i, score));
+		}
+		
+		double[][] centers = new double[20][];
+		for (int i = 0; i < centers.length; ++i) {
+			centers[i] = new double[] {coord(random), coord(random), 20 + random.nextInt(300)};
+		}
+		for (int op = 0; op < OPS; ++op) {
+			int id = random.nextInt(POINTS);
+			if (random.nextInt(4) == 0) {
+				cached.remove(id);
+				plain.remove(id);
+			}
+			else {
+				long score = ZSets.calcScore(coord(random), coord(random));
+				Member a = cached.get(id);
+				Member b = plain.get(id);
+				cached.add(score, a != null ? a : new Member(id, score), false, false, false);
+				plain.add(score, b != null ? b : new Member(id, score), false, false, false);
+			}
+			double[] c = centers[random.nextInt(centers.length)];
+			check(ids(cached.georadius(c[0], c[1], c[2])).equals(ids(plain.georadius(c[0], c[1], c[2]))),
+					"georadius at op " + op);
+		}
+		GeoQueryCache<Member> cache = cached.getGeoCache();
+		check(cache.getHits() > 0 && cache.getInvalidations() > 0, "hits " + cache.getHits() + ", invalidations " + cache.getInvalidations());
+	}
+	
+	private static double coord(Random random) {
+		return (random.nextDouble() * 2 - 1) * RANGE;
+	}
+	
+	private static Set<Integer> ids(List<Member> members) {
+		Set<Integer> set = new HashSet<>();
+		for (Member m : members) {
+			check(set.add(m.id), "duplicate " + m.id);
+		}
+		return set;
+	}
+	
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+	
+	private static class Member extends ZSetEle<Integer> {
+		final int id;
+		
+		Member(int id, long score) {
+			this.id = id;
+			this.score = score;
+		}
+		
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Member && ((Member) obj).id == id;
+		}
+	}
+
+}
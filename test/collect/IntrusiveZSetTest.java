@@ -0,0 +1,164 @@
+package com.yiba.core.collect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * IntrusiveZSet的顺序、排名和跨度检查
+ * 随机操作与按(分值, 加入顺序)排序的列表对照，没有测试框架，直接运行main，失败时抛出AssertionError。
+ * @author U-Demon
+ */
+public class IntrusiveZSetTest {
+	
+	private static final int OPS = 200000;
+	private static final int KEYS = 3000;
+	private static final int SCORES = 500;
+	
+	public static void main(String[] args) {
+		Random random = new Random(26);
+		IntrusiveZSet<Member, Integer> zset = new IntrusiveZSet<>("test");
+		Map<Integer, Member> members = new HashMap<>();
+		long seq = 0;
+		
+		for (int op = 0; op < OPS; ++op) {
+			int id = random.nextInt(KEYS);
+			long score = random.nextInt(SCORES);
+			Member m = members.get(id);
+			switch (random.nextInt(8)) {
+			case 0:
+			case 1:
+			case 2:
+				if (m == null) {
+					m = new Member(id, score);
+					m.seq = ++seq;
+					members.put(id, m);
+					check(zset.add(m) == 1, "add");
+				}
+				else if (m.score != score) {
+					// 分值改变后排在相同分值元素的最后
+					m.seq = ++seq;
+					zset.updateScore(m, score);
+				}
+				break;
+			case 3:
+				if (m != null) {
+					members.remove(id);
+					check(random.nextBoolean() ? zset.remove(m) : zset.remove(m.id), "remove");
+					check(m.zslLevel == 0 && m.zslNext == null && m.zslPrev == null && m.zslLinks == null, "links cleared");
+				}
+				break;
+			case 4: {
+				long hi = score + random.nextInt(50);
+				int offset = random.nextInt(20);
+				int count = random.nextInt(20) - 1;
+				List<Member> expect = inRange(sorted(members), score, hi);
+				check(zset.rangeByScore(score, hi).equals(expect), "rangeByScore");
+				check(zset.rangeByScore(score, hi, offset, count).equals(page(expect, offset, count)), "rangeByScore limit");
+				List<Member> rev = new ArrayList<>(expect);
+				Collections.reverse(rev);
+				check(zset.revRangeByScore(hi, score, offset, count).equals(page(rev, offset, count)), "revRangeByScore limit");
+				break;
+			}
+			case 5:
+				if (random.nextInt(50) == 0) {
+					long hi = score + random.nextInt(5);
+					int expect = inRange(sorted(members), score, hi).size();
+					check(zset.removeRangeByScore(score, hi) == expect, "removeRangeByScore");
+					members.values().removeIf(e -> e.score >= score && e.score <= hi);
+				}
+				break;
+			case 6:
+				if (random.nextInt(50) == 0) {
+					List<Member> all = sorted(members);
+					int start = random.nextInt(all.size() + 1);
+					int stop = start + random.nextInt(5);
+					int expect = Math.max(0, Math.min(stop, all.size() - 1) - start + 1);
+					check(zset.removeRangeByRank(start, stop) == expect, "removeRangeByRank");
+					for (Member e : all.subList(start, start + expect)) {
+						members.remove(e.id);
+					}
+				}
+				break;
+			default:
+				if (m != null) {
+					check(zset.get(id) == m, "get");
+				}
+				break;
+			}
+			if (op % 5000 == 0) {
+				checkStructure(zset, members);
+			}
+		}
+		checkStructure(zset, members);
+		System.out.println("IntrusiveZSetTest ok, size=" + zset.size());
+	}
+	
+	/**
+	 * 整体检查：顺序、排名、第0层的前后指针，只有一层的元素不分配数组
+	 */
+	private static void checkStructure(IntrusiveZSet<Member, Integer> zset, Map<Integer, Member> members) {
+		List<Member> all = sorted(members);
+		check(zset.size() == all.size(), "size");
+		check(zset.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE).equals(all), "order");
+		IntrusiveZSetEle<Integer> prev = null;
+		for (int i = 0; i < all.size(); ++i) {
+			Member m = all.get(i);
+			check(zset.rank(m) == i, "rank");
+			check(zset.getByRank(i) == m, "getByRank");
+			check(prev == null || m.zslPrev == prev, "backward");
+			check(m.zslLevel >= 1 && (m.zslLevel == 1) == (m.zslLinks == null && m.zslSpan == null), "level arrays");
+			prev = m;
+		}
+		check(zset.getByRank(all.size()) == null, "getByRank out of range");
+	}
+	
+	private static List<Member> sorted(Map<Integer, Member> members) {
+		List<Member> all = new ArrayList<>(members.values());
+		all.sort(Comparator.comparingLong(Member::getScore).thenComparingLong(m -> m.seq));
+		return all;
+	}
+	
+	private static List<Member> inRange(List<Member> all, long min, long max) {
+		List<Member> list = new ArrayList<>();
+		for (Member m : all) {
+			if (m.score >= min && m.score <= max) {
+				list.add(m);
+			}
+		}
+		return list;
+	}
+	
+	private static List<Member> page(List<Member> list, int offset, int count) {
+		int from = Math.min(offset, list.size());
+		int to = count < 0 ? list.size() : Math.min(list.size(), from + count);
+		return count == 0 ? new ArrayList<>() : list.subList(from, to);
+	}
+	
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+	
+	private static class Member extends IntrusiveZSetEle<Integer> {
+		final int id;
+		/** 加入或最后一次改变分值的顺序 */
+		long seq;
+		
+		Member(int id, long score) {
+			this.id = id;
+			this.score = score;
+		}
+		
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+	}
+
+}
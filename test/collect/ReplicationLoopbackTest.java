@@ -0,0 +1,225 @@
+package com.yiba.core.collect;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 主从复制的回环测试
+ * 主节点和副本在127.0.0.1上连接，写线程为main线程。依次检查：
+ * 初始全量同步、持续写入时副本按间隔确认、断线后部分同步、落后超过积压缓冲区后全量同步，
+ * 每个阶段结束后两边的ZSet内容（顺序、分值）必须完全一致。
+ * 没有测试框架，直接运行main，失败时抛出AssertionError。
+ * @author U-Demon
+ */
+public class ReplicationLoopbackTest {
+	
+	private static final String[] KEYS = {"rank", "world"};
+	
+	/** 积压缓冲区大小，全量同步阶段写入超过这个大小的数据 */
+	private static final int BACKLOG = 1 << 20;
+	
+	private static final long TIMEOUT_MILLIS = 10000;
+	
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(32);
+		Codec codec = new Codec();
+		ReplicationPrimary<Member, Integer> primary = new ReplicationPrimary<>(codec, BACKLOG);
+		primary.setPingIntervalMillis(20);
+		ZSet<Member, Integer>[] zsets = newZSets();
+		mutate(random, zsets[0], 2000);
+		for (ZSet<Member, Integer> zset : zsets) {
+			primary.replicate(zset);
+		}
+		primary.listen(0);
+		
+		ReplicationReplica<Member, Integer> replica = new ReplicationReplica<>(codec, "127.0.0.1", primary.getPort());
+		replica.setAckIntervalMillis(10);
+		replica.setRetryMillis(20);
+		replica.start();
+		
+		// 初始全量同步，之后持续写入，不等待副本
+		long deadline = System.currentTimeMillis() + 500;
+		long acks = 0;
+		long lastAck = -1;
+		while (System.currentTimeMillis() < deadline) {
+			for (ZSet<Member, Integer> zset : zsets) {
+				mutate(random, zset, 200);
+			}
+			primary.tick();
+			List<ReplicationPrimary<Member, Integer>.Replica> linked = primary.replicas();
+			long ack = linked.isEmpty() ? -1 : linked.get(0).getAckOffset();
+			if (ack != lastAck) {
+				acks++;
+				lastAck = ack;
+			}
+		}
+		check(acks >= 5, "acks under load: " + acks);
+		converge(primary, replica, zsets);
+		check(replica.getFullSyncs() == 1 && replica.getPartialSyncs() == 0, "initial full sync");
+		
+		// 主节点断开连接，副本带着offset重连，部分同步
+		primary.replicas().get(0).close();
+		for (int i = 0; i < 50; ++i) {
+			for (ZSet<Member, Integer> zset : zsets) {
+				mutate(random, zset, 100);
+			}
+			primary.tick();
+			Thread.sleep(2);
+		}
+		converge(primary, replica, zsets);
+		check(replica.getFullSyncs() == 1 && replica.getPartialSyncs() == 1, "partial resync");
+		
+		// 副本停止期间写入超过积压缓冲区，重连后只能全量同步
+		replica.close();
+		waitFor(() -> primary.replicas().isEmpty(), "replica gone");
+		long from = primary.offset();
+		while (primary.offset() - from <= BACKLOG) {
+			for (ZSet<Member, Integer> zset : zsets) {
+				mutate(random, zset, 500);
+			}
+			primary.tick();
+		}
+		replica.start();
+		converge(primary, replica, zsets);
+		check(replica.getFullSyncs() == 2 && replica.getPartialSyncs() == 1, "forced full resync");
+		
+		ReplicationPrimary<Member, Integer>.Replica link = primary.replicas().get(0);
+		System.out.println("ReplicationLoopbackTest ok, offset=" + primary.offset() + " lagBytes=" + link.getLagBytes()
+				+ " lagMillis=" + replica.getLagMillis());
+		replica.close();
+		primary.close();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static ZSet<Member, Integer>[] newZSets() {
+		ZSet<Member, Integer>[] zsets = (ZSet<Member, Integer>[]) new ZSet<?, ?>[KEYS.length];
+		for (int i = 0; i < KEYS.length; ++i) {
+			zsets[i] = new ZSet<>(KEYS[i]);
+		}
+		return zsets;
+	}
+	
+	/**
+	 * 随机修改：加入、更新分值、增加分值、移除、按分值和排名范围移除
+	 */
+	private static void mutate(Random random, ZSet<Member, Integer> zset, int n) {
+		for (int i = 0; i < n; ++i) {
+			int id = random.nextInt(5000);
+			long score = random.nextInt(2000);
+			int op = random.nextInt(40);
+			if (op < 20) {
+				Member de = zset.dict.get(id);
+				zset.add(score, de != null ? de : new Member(id, score), false, false, false);
+			}
+			else if (op < 24) {
+				Member de = zset.dict.get(id);
+				if (de != null) {
+					zset.add(score % 10, de, false, true, true);
+				}
+			}
+			else if (op < 38) {
+				zset.remove(id);
+			}
+			else if (op == 38) {
+				zset.removeRangeByScore(score, score + 3);
+			}
+			else {
+				zset.removeRangeByRank(score % 100, score % 100 + 2);
+			}
+		}
+	}
+	
+	/**
+	 * 停止写入，等副本应用到主节点当前的offset，然后逐个比较
+	 */
+	private static void converge(ReplicationPrimary<Member, Integer> primary, ReplicationReplica<Member, Integer> replica,
+			ZSet<Member, Integer>[] zsets) throws InterruptedException {
+		primary.tick();
+		long target = primary.offset();
+		// 全量同步的请求在tick中处理，等待期间继续调用，只会追加PING
+		waitFor(() -> {
+			primary.tick();
+			return replica.getOffset() >= target;
+		}, "replica offset " + target);
+		for (ZSet<Member, Integer> zset : zsets) {
+			ZSetSnapshot<Member, Integer> snapshot = replica.snapshot(zset.getKey());
+			check(snapshot != null, "replica key " + zset.getKey());
+			List<Member> expect = zset.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE);
+			List<Member> got = snapshot.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE);
+			check(got.size() == expect.size(), "size of " + zset.getKey() + ": " + got.size() + " != " + expect.size());
+			for (int i = 0; i < expect.size(); ++i) {
+				Member e = expect.get(i);
+				Member g = got.get(i);
+				check(e.id == g.id && e.getScore() == snapshot.score(g.id), "member " + i + " of " + zset.getKey());
+			}
+		}
+	}
+	
+	private static void waitFor(BooleanSupplier condition, String what) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("timeout: " + what);
+			}
+			Thread.sleep(5);
+		}
+	}
+	
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+	
+	private static class Member extends ZSetEle<Integer> {
+		final int id;
+		
+		Member(int id, long score) {
+			this.id = id;
+			this.score = score;
+		}
+		
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Member && ((Member) obj).id == id;
+		}
+	}
+	
+	private static class Codec implements ZSetCodec<Member, Integer> {
+		
+		@Override
+		public void writeKey(DataOutput out, Integer id) throws IOException {
+			out.writeInt(id);
+		}
+		
+		@Override
+		public Integer readKey(DataInput in) throws IOException {
+			return in.readInt();
+		}
+		
+		@Override
+		public void writeElement(DataOutput out, Member ele) throws IOException {
+			out.writeInt(ele.id);
+		}
+		
+		@Override
+		public Member readElement(DataInput in) throws IOException {
+			return new Member(in.readInt(), 0);
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package com.yiba.core.collect;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ZSetChangeFeed的检查
+ * 序号绕过缓冲区多圈后记录不错乱；丢弃模式下消费者先收到onOverrun，丢弃的条数计入getLost；
+ * 慢消费者在另一个线程中，等待模式不丢记录，丢弃模式收到的加上丢弃的等于发布的。
+ * 没有测试框架，直接运行main，失败时抛出AssertionError。
+ * @author U-Demon
+ */
+public class ZSetChangeFeedTest {
+	
+	public static void main(String[] args) throws Exception {
+		wraparound();
+		overrun();
+		closed();
+		slowConsumer(true);
+		slowConsumer(false);
+		System.out.println("ZSetChangeFeedTest ok");
+	}
+	
+	/**
+	 * 小缓冲区发布很多圈，每条记录的内容与序号对应
+	 */
+	private static void wraparound() {
+		ZSetChangeFeed feed = new ZSetChangeFeed(8, false);
+		ZSetChangeFeed.Consumer consumer = feed.newConsumer();
+		Checker checker = new Checker();
+		for (int round = 0; round < 1000; ++round) {
+			int n = 1 + round % 8;
+			for (int i = 0; i < n; ++i) {
+				long seq = feed.getPublished();
+				check(publish(feed, seq), "publish " + seq);
+			}
+			// 分两次拉取，第一次只拉一部分
+			consumer.poll(checker, 3);
+			consumer.poll(checker, Integer.MAX_VALUE);
+			check(consumer.lag() == 0, "lag after poll");
+		}
+		check(checker.next == feed.getPublished() && feed.getPublished() > 8 * 100, "consumed " + checker.next);
+		check(feed.getDropped() == 0 && consumer.getLost() == 0, "nothing dropped");
+	}
+	
+	/**
+	 * 消费者不拉取，缓冲区满后丢弃；之后发布的第一条记录带着丢弃的条数
+	 */
+	private static void overrun() {
+		ZSetChangeFeed feed = new ZSetChangeFeed(8, false);
+		ZSetChangeFeed.Consumer consumer = feed.newConsumer();
+		Checker checker = new Checker();
+		for (int i = 0; i < 20; ++i) {
+			check(publish(feed, feed.getPublished()) == (i < 8), "publish " + i);
+		}
+		check(feed.getPublished() == 8 && feed.getDropped() == 12, "dropped " + feed.getDropped());
+		check(consumer.poll(checker, Integer.MAX_VALUE) == 8 && checker.overruns == 0, "before the gap");
+		
+		check(publish(feed, feed.getPublished()), "publish after the gap");
+		check(publish(feed, feed.getPublished()), "publish after the gap");
+		check(consumer.poll(checker, Integer.MAX_VALUE) == 2, "after the gap");
+		check(checker.overruns == 1 && checker.overrunAt == 8 && checker.overrunLost == 12, "onOverrun " + checker.overrunAt + " " + checker.overrunLost);
+		check(consumer.getLost() == 12, "lost " + consumer.getLost());
+		
+		// 再次丢弃，累加
+		for (int i = 0; i < 10; ++i) {
+			publish(feed, feed.getPublished());
+		}
+		consumer.poll(checker, Integer.MAX_VALUE);
+		publish(feed, feed.getPublished());
+		consumer.poll(checker, Integer.MAX_VALUE);
+		check(checker.overruns == 2 && consumer.getLost() == 14 && feed.getDropped() == 14, "second overrun " + consumer.getLost());
+	}
+	
+	/**
+	 * 关闭的消费者不再挡住写线程
+	 */
+	private static void closed() {
+		ZSetChangeFeed feed = new ZSetChangeFeed(8, true);
+		ZSetChangeFeed.Consumer consumer = feed.newConsumer();
+		for (int i = 0; i < 8; ++i) {
+			publish(feed, feed.getPublished());
+		}
+		consumer.close();
+		for (int i = 0; i < 100; ++i) {
+			check(publish(feed, feed.getPublished()), "publish after close");
+		}
+		check(feed.getWaits() == 0 && feed.getLag() == 0, "no wait");
+	}
+	
+	/**
+	 * 慢消费者在另一个线程中拉取
+	 * @param block	等待模式不丢记录；丢弃模式收到的加上丢弃的等于发布的，onOverrun的条数之和等于getLost
+	 */
+	private static void slowConsumer(boolean block) throws Exception {
+		int total = 200000;
+		ZSetChangeFeed feed = new ZSetChangeFeed(64, block);
+		ZSetChangeFeed.Consumer consumer = feed.newConsumer();
+		Checker checker = new Checker();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		// 写线程结束后设置为发布的总数
+		AtomicLong end = new AtomicLong(Long.MAX_VALUE);
+		Thread thread = new Thread(() -> {
+			try {
+				while (checker.received < end.get()) {
+					if (consumer.poll(checker, 16) > 0) {
+						// 每批之后停一下，比写线程慢
+						LockSupport.parkNanos(20000);
+					}
+				}
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		}, "feed-consumer");
+		thread.start();
+		
+		for (int i = 0; i < total; ++i) {
+			publish(feed, feed.getPublished());
+		}
+		// 最后一条等消费者追上后再发布，带上之前丢弃的条数；等待期间失败的发布也计入丢弃
+		while (!publish(feed, feed.getPublished())) {
+			LockSupport.parkNanos(100000);
+		}
+		end.set(feed.getPublished());
+		thread.join(60000);
+		check(!thread.isAlive(), "consumer did not finish");
+		if (failure.get() != null) {
+			throw new AssertionError("consumer failed", failure.get());
+		}
+		
+		check(feed.getPublished() + feed.getDropped() >= total + 1, "published " + feed.getPublished() + " dropped " + feed.getDropped());
+		check(checker.received == feed.getPublished(), "received " + checker.received);
+		check(consumer.getLost() == feed.getDropped() && checker.overrunLostSum == feed.getDropped(), "lost " + consumer.getLost());
+		if (block) {
+			check(feed.getDropped() == 0 && feed.getWaits() > 0, "waits " + feed.getWaits());
+		}
+		else {
+			check(feed.getDropped() > 0 && checker.overruns > 0, "drops " + feed.getDropped());
+		}
+	}
+	
+	/**
+	 * 记录内容由序号决定，收到时逐条核对
+	 */
+	private static boolean publish(ZSetChangeFeed feed, long seq) {
+		byte type = (byte) (seq % 3 + 1);
+		return feed.publish("feed", Long.valueOf(seq), type, seq * 2, seq * 3);
+	}
+	
+	private static class Checker implements ZSetChangeFeed.Handler {
+		long next;
+		long received;
+		int overruns;
+		long overrunAt = -1;
+		long overrunLost;
+		long overrunLostSum;
+		long pendingOverrun = -1;
+		
+		@Override
+		public void onChange(long sequence, String key, Object member, byte type, long oldScore, long newScore) {
+			check(sequence == next, "sequence " + sequence + " != " + next);
+			check("feed".equals(key) && member.equals(sequence) && type == sequence % 3 + 1
+					&& oldScore == sequence * 2 && newScore == sequence * 3, "record " + sequence);
+			check(pendingOverrun == -1 || pendingOverrun == sequence, "onOverrun before another record");
+			pendingOverrun = -1;
+			next++;
+			received++;
+		}
+		
+		@Override
+		public void onOverrun(long sequence, long lost) {
+			check(sequence == next && lost > 0, "onOverrun " + sequence + " " + lost);
+			overruns++;
+			overrunAt = sequence;
+			overrunLost = lost;
+			overrunLostSum += lost;
+			pendingOverrun = sequence;
+		}
+	}
+	
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+
+}
@@ -0,0 +1,265 @@
+package com.yiba.core.collect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ZSet成员过期的检查
+ * 时钟由测试控制，不调用expireCycle，检查到期后还没清理的成员在重新加入、expire、persist、ttl时先被移除，
+ * 并且移除和重新加入都通过回调通知，回调时成员已经从zsl中移除；
+ * size和分页获取按排名跳过到期的成员而不清理，按排名移除使用未过期成员的排名，回调收到zsl中的排名。
+ * 没有测试框架，直接运行main，失败时抛出AssertionError。
+ * @author U-Demon
+ */
+public class ZSetExpireTest {
+	
+	private static long now = 1000;
+	
+	public static void main(String[] args) {
+		reAdd();
+		reAddFlags();
+		persist();
+		expire();
+		ttl();
+		boundedReads();
+		removeRangeByRank();
+		System.out.println("ZSetExpireTest ok");
+	}
+	
+	/**
+	 * 到期后重新加入，是新成员，不再带着原来的过期时间
+	 */
+	private static void reAdd() {
+		Events events = new Events();
+		ZSet<Member, Integer> zset = newZSet(events);
+		check(zset.add(new Member(1, 10), 100) == 1, "add with ttl");
+		now += 100;
+		events.list.clear();
+		
+		Member fresh = new Member(1, 20);
+		check(zset.add(fresh) == 1, "re-add");
+		check(events.list.equals(List.of("remove 1 10", "add 1 20")), "re-add events " + events.list);
+		check(zset.get(1) == fresh && zset.ttl(1) == -1, "re-added without ttl");
+		check(zset.rangeByScore(10, 10).isEmpty() && zset.rangeByScore(20, 20).equals(List.of(fresh)), "re-added score");
+		check(zset.getExpired() == 1 && zset.getExpires() == 0, "expire counters");
+		now += 1000;
+		check(zset.size() == 1, "still alive");
+	}
+	
+	/**
+	 * 到期的成员按不存在处理：NX可以加入，XX不加入，INCR从0开始
+	 */
+	private static void reAddFlags() {
+		Events events = new Events();
+		ZSet<Member, Integer> zset = newZSet(events);
+		zset.add(new Member(1, 10), 50);
+		zset.add(new Member(2, 10), 50);
+		zset.add(new Member(3, 10), 50);
+		now += 50;
+		
+		check(zset.add(5L, new Member(1, 5), true, false, false) == 1, "nx after deadline");
+		check(zset.get(1).getScore() == 5, "nx score");
+		check(zset.add(5L, new Member(2, 5), false, true, false) == -3, "xx after deadline");
+		check(zset.get(2) == null && !zset.dict.containsKey(2), "xx removed");
+		check(zset.add(7L, new Member(3, 7), false, false, true) == 1, "incr after deadline");
+		check(zset.get(3).getScore() == 7, "incr starts from zero");
+		check(zset.size() == 2 && zset.getExpires() == 0, "size");
+	}
+	
+	/**
+	 * 到期后persist返回false并移除，不能让过期的成员复活
+	 */
+	private static void persist() {
+		Events events = new Events();
+		ZSet<Member, Integer> zset = newZSet(events);
+		zset.add(new Member(1, 10), 100);
+		zset.add(new Member(2, 10), 100);
+		now += 99;
+		check(zset.persist(2), "persist before deadline");
+		now += 1;
+		check(!zset.persist(1), "persist after deadline");
+		check(!zset.dict.containsKey(1) && events.list.contains("remove 1 10"), "removed by persist");
+		check(!zset.persist(2) && zset.ttl(2) == -1 && zset.get(2) != null, "persisted member");
+	}
+	
+	/**
+	 * 到期后expire返回false，不会给过期的成员设置新的过期时间
+	 */
+	private static void expire() {
+		Events events = new Events();
+		ZSet<Member, Integer> zset = newZSet(events);
+		zset.add(new Member(1, 10), 100);
+		zset.add(new Member(2, 10), 100);
+		now += 50;
+		check(zset.expire(2, 100), "expire before deadline");
+		now += 50;
+		check(!zset.expire(1, 1000), "expire after deadline");
+		check(!zset.dict.containsKey(1) && zset.ttl(1) == -2, "removed by expire");
+		check(zset.ttl(2) == 50, "extended ttl");
+		now += 50;
+		check(!zset.expire(2, 0) && zset.getExpires() == 0, "expire after extended deadline");
+		check(zset.size() == 0 && events.list.size() == 4, "events " + events.list);
+	}
+	
+	/**
+	 * 到期后ttl返回-2并移除
+	 */
+	private static void ttl() {
+		Events events = new Events();
+		ZSet<Member, Integer> zset = newZSet(events);
+		zset.add(new Member(1, 10), 100);
+		zset.add(new Member(2, 10));
+		check(zset.ttl(1) == 100 && zset.ttl(2) == -1 && zset.ttl(3) == -2, "ttl before deadline");
+		now += 100;
+		check(zset.ttl(1) == -2, "ttl after deadline");
+		check(!zset.dict.containsKey(1) && zset.getExpired() == 1, "removed by ttl");
+		check(zset.rangeByScore(10, 10).size() == 1, "zsl after ttl");
+	}
+	
+	/**
+	 * 到期还未清理时，size和分页获取不计入也不清理，不产生回调
+	 */
+	private static void boundedReads() {
+		Events events = new Events();
+		ZSet<Member, Integer> zset = newZSet(events);
+		for (int id = 1; id <= 10; ++id) {
+			if (id == 2 || id == 4 || id == 6) {
+				zset.add(new Member(id, id), 100);
+			}
+			else {
+				zset.add(new Member(id, id));
+			}
+		}
+		now += 100;
+		events.list.clear();
+		
+		check(zset.size() == 7, "size " + zset.size());
+		check(ids(zset.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE, 1, 3)).equals(List.of(3, 5, 7)), "page");
+		check(ids(zset.rangeByScore(3, 7, 1, -1)).equals(List.of(5, 7)), "page in range");
+		check(ids(zset.revRangeByScore(Long.MAX_VALUE, Long.MIN_VALUE, 1, 3)).equals(List.of(9, 8, 7)), "reverse page");
+		check(ids(zset.revRangeByScore(7, 2, 1, Integer.MAX_VALUE)).equals(List.of(5, 3)), "reverse page in range");
+		check(zset.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE, 7, 1).isEmpty(), "page after the last alive");
+		check(events.list.isEmpty() && zset.getExpired() == 0 && zset.dict.size() == 10, "reads reclaimed " + events.list);
+		
+		check(zset.expireCycle(Long.MAX_VALUE) == 3, "expireCycle");
+		check(zset.size() == 7 && zset.dict.size() == 7 && events.list.size() == 3, "after expireCycle");
+	}
+	
+	/**
+	 * 按未过期成员的排名移除，夹在中间的到期成员一起清理；没有过期时间的副本按回调的排名移除后内容一致
+	 */
+	private static void removeRangeByRank() {
+		Events events = new Events();
+		ZSet<Member, Integer> zset = newZSet(events);
+		ZSet<Member, Integer> replica = new ZSet<>("replica");
+		for (int id = 1; id <= 10; ++id) {
+			if (id == 3 || id == 4 || id == 8) {
+				zset.add(new Member(id, id), 100);
+			}
+			else {
+				zset.add(new Member(id, id));
+			}
+			replica.add(new Member(id, id));
+		}
+		now += 100;
+		events.list.clear();
+		
+		// 未过期的1, 2, 5, 6, 7, 9, 10中的第1到3个，zsl中为第1到5个
+		check(zset.removeRangeByRank(1, 3) == 3, "remove by rank");
+		check(events.list.equals(List.of("removeRangeByRank 1 5")), "rank events " + events.list);
+		check(ids(zset.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE)).equals(List.of(1, 7, 9, 10)), "after remove by rank");
+		check(zset.size() == 4 && zset.getExpired() == 2 && zset.dict.containsKey(8), "expired in the window");
+		replica.removeRangeByRank(1, 5);
+		check(ids(replica.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE)).equals(List.of(1, 7, 8, 9, 10)), "replica");
+		
+		// 最后一个未过期的，zsl中8还在
+		events.list.clear();
+		check(zset.removeRangeByRank(-1, -1) == 1, "remove last");
+		check(events.list.equals(List.of("removeRangeByRank 4 4")), "last events " + events.list);
+		check(zset.removeRangeByRank(3, 5) == 0 && zset.removeRangeByRank(2, 1) == 0, "out of range");
+		
+		// 按分值移除，到期的不计入返回值
+		check(zset.removeRangeByScore(7, 8) == 1 && zset.getExpired() == 3, "remove by score");
+		check(ids(zset.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE)).equals(List.of(1, 9)) && zset.dict.size() == 2, "after remove by score");
+	}
+	
+	private static List<Integer> ids(List<Member> members) {
+		List<Integer> ids = new ArrayList<>();
+		for (Member m : members) {
+			ids.add(m.id);
+		}
+		return ids;
+	}
+	
+	private static ZSet<Member, Integer> newZSet(Events events) {
+		ZSet<Member, Integer> zset = new ZSet<>("expire");
+		zset.setClock(() -> now);
+		zset.setListener(events);
+		return zset;
+	}
+	
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+	
+	/**
+	 * 记录回调
+	 */
+	private static class Events implements ZSetListener<Member, Integer> {
+		final List<String> list = new ArrayList<>();
+		
+		@Override
+		public void onAdd(ZSet<Member, Integer> zset, Member ele, long score) {
+			list.add("add " + ele.id + " " + score);
+		}
+		
+		@Override
+		public void onUpdate(ZSet<Member, Integer> zset, Member ele, long oldScore, long score) {
+			list.add("update " + ele.id + " " + oldScore + " " + score);
+		}
+		
+		@Override
+		public void onRemove(ZSet<Member, Integer> zset, Member ele, long score) {
+			List<Member> bucket = zset.zsl.get(score);
+			check(!zset.dict.containsKey(ele.id) && (bucket == null || !bucket.contains(ele)), "onRemove before removal");
+			list.add("remove " + ele.id + " " + score);
+		}
+		
+		@Override
+		public void onRemoveRangeByScore(ZSet<Member, Integer> zset, long min, long max) {
+			list.add("removeRangeByScore " + min + " " + max);
+		}
+		
+		@Override
+		public void onRemoveRangeByRank(ZSet<Member, Integer> zset, long start, long stop) {
+			list.add("removeRangeByRank " + start + " " + stop);
+		}
+	}
+	
+	private static class Member extends ZSetEle<Integer> {
+		final int id;
+		
+		Member(int id, long score) {
+			this.id = id;
+			this.score = score;
+		}
+		
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Member && ((Member) obj).id == id;
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.yiba.core.collect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ZSet和IntrusiveZSet分页获取以及ZSet分批遍历的检查
+ * 小集合上使用很大的count，结果按区间内的个数返回，不按count分配；scan的count小于1时仍能遍历结束，
+ * 每批最多多出一个分值桶。
+ * 没有测试框架，直接运行main，失败时抛出AssertionError。
+ * @author U-Demon
+ */
+public class ZSetPagingTest {
+	
+	private static final int SIZE = 20;
+	
+	public static void main(String[] args) {
+		ZSet<Member, Integer> zset = new ZSet<>("paging");
+		IntrusiveZSet<Member, Integer> izset = new IntrusiveZSet<>("paging");
+		List<Member> model = new ArrayList<>();
+		for (int i = 0; i < SIZE; ++i) {
+			// 三个一组共用一个分值
+			Member m = new Member(i, i / 3);
+			model.add(m);
+			zset.add(m);
+			izset.add(new Member(i, i / 3));
+		}
+		List<Member> reversed = new ArrayList<>(model);
+		Collections.reverse(reversed);
+		
+		hugeCount(zset.rangeByScore(0, Long.MAX_VALUE, 0, Integer.MAX_VALUE), model, "zset range");
+		hugeCount(zset.rangeByScore(2, 4, 1, Integer.MAX_VALUE), model.subList(7, 15), "zset range offset");
+		hugeCount(zset.rangeByScore(100, 200, 0, Integer.MAX_VALUE), model.subList(0, 0), "zset range empty");
+		hugeCount(zset.revRangeByScore(Long.MAX_VALUE, 0, 0, Integer.MAX_VALUE), reversed, "zset revRange");
+		hugeCount(zset.revRangeByScore(4, 2, 2, Integer.MAX_VALUE), reversed.subList(7, 14), "zset revRange offset");
+		hugeCount(izset.rangeByScore(0, Long.MAX_VALUE, 0, Integer.MAX_VALUE), model, "intrusive range");
+		hugeCount(izset.rangeByScore(2, 4, 1, Integer.MAX_VALUE), model.subList(7, 15), "intrusive range offset");
+		hugeCount(izset.revRangeByScore(Long.MAX_VALUE, 0, 0, Integer.MAX_VALUE), reversed, "intrusive revRange");
+		hugeCount(izset.revRangeByScore(4, 2, 2, Integer.MAX_VALUE), reversed.subList(7, 14), "intrusive revRange offset");
+		
+		for (int count : new int[] {Integer.MIN_VALUE, -1, 0, 1, 2, 4, 100}) {
+			scan(zset, count);
+		}
+		System.out.println("ZSetPagingTest ok");
+	}
+	
+	private static void hugeCount(List<Member> list, List<Member> expect, String what) {
+		check(list.equals(expect), what + " " + list);
+	}
+	
+	/**
+	 * 每批至少一个分值桶，超过count的部分不多于最后一个桶，全部遍历后每个元素都出现过
+	 */
+	private static void scan(ZSet<Member, Integer> zset, int count) {
+		Set<Integer> seen = new HashSet<>();
+		long cursor = ZSet.SCAN_BEGIN;
+		int batches = 0;
+		do {
+			List<Member> batch = new ArrayList<>();
+			cursor = zset.scan(cursor, count, batch);
+			check(!batch.isEmpty(), "empty batch, count " + count);
+			long last = batch.get(batch.size() - 1).getScore();
+			int lastBucket = zset.rangeByScore(last, last).size();
+			check(batch.size() < Math.max(count, 1) + lastBucket, "batch size " + batch.size() + ", count " + count);
+			for (Member m : batch) {
+				seen.add(m.id);
+			}
+			check(++batches <= SIZE, "scan does not end, count " + count);
+		} while (cursor != ZSet.SCAN_BEGIN);
+		check(seen.size() == SIZE, "scan missed members, count " + count);
+	}
+	
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+	
+	private static class Member extends IntrusiveZSetEle<Integer> {
+		final int id;
+		
+		Member(int id, long score) {
+			this.id = id;
+			this.score = score;
+		}
+		
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Member && ((Member) obj).id == id;
+		}
+	}
+
+}
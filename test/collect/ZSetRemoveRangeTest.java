@@ -0,0 +1,173 @@
+package com.yiba.core.collect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * ZSet按分值和排名区间移除的检查
+ * 固定的边界用例：负数排名、start大于stop、超出范围的排名、min大于max、不存在的key；
+ * 之后随机移除，与按顺序排列的列表对照，每次检查返回值、剩余顺序、dict，以及zsl中没有留下空的分值桶。
+ * 没有测试框架，直接运行main，失败时抛出AssertionError。
+ * @author U-Demon
+ */
+public class ZSetRemoveRangeTest {
+	
+	private static final int OPS = 20000;
+	private static final int SCORES = 100;
+	
+	public static void main(String[] args) {
+		edges();
+		random();
+		System.out.println("ZSetRemoveRangeTest ok");
+	}
+	
+	private static void edges() {
+		List<Member> model = new ArrayList<>();
+		ZSet<Member, Integer> zset = filled(10, model);
+		
+		// 不移除
+		check(zset.removeRangeByRank(5, 4) == 0, "start > stop");
+		check(zset.removeRangeByRank(10, 20) == 0, "start >= size");
+		check(zset.removeRangeByRank(-1, -2) == 0, "negative start > stop");
+		check(zset.removeRangeByRank(0, -11) == 0, "stop before first");
+		check(zset.removeRangeByScore(5, 4) == 0, "min > max");
+		check(zset.removeRangeByScore(1000, Long.MAX_VALUE) == 0, "no score in range");
+		check(ZSets.zremrangebyrank("no such key", 0, -1) == 0, "missing key by rank");
+		check(ZSets.zremrangebyscore("no such key", 0, 100) == 0, "missing key by score");
+		verify(zset, model);
+		
+		// 最后一个
+		check(zset.removeRangeByRank(-1, -1) == 1, "last");
+		model.remove(model.size() - 1);
+		verify(zset, model);
+		
+		// start越过开头按0处理，stop越过末尾按最后一个处理
+		check(zset.removeRangeByRank(-100, 1) == 2, "start before first");
+		model.subList(0, 2).clear();
+		verify(zset, model);
+		check(zset.removeRangeByRank(5, 100) == 2, "stop after last");
+		model.subList(5, 7).clear();
+		verify(zset, model);
+		
+		// 负数区间
+		check(zset.removeRangeByRank(-3, -2) == 2, "negative range");
+		model.subList(2, 4).clear();
+		verify(zset, model);
+		
+		// 全部
+		check(zset.removeRangeByRank(0, -1) == 3, "all");
+		model.clear();
+		verify(zset, model);
+		check(zset.removeRangeByRank(0, -1) == 0, "empty");
+	}
+	
+	private static void random() {
+		Random random = new Random(29);
+		List<Member> model = new ArrayList<>();
+		ZSet<Member, Integer> zset = filled(0, model);
+		int nextId = 0;
+		for (int op = 0; op < OPS; ++op) {
+			int r = random.nextInt(10);
+			if (r < 6 || model.isEmpty()) {
+				Member m = new Member(nextId++, random.nextInt(SCORES));
+				zset.add(m);
+				insert(model, m);
+			}
+			else if (r < 8) {
+				long min = random.nextInt(SCORES + 10) - 5;
+				long max = min + random.nextInt(5) - 1;
+				int expect = 0;
+				for (int i = model.size() - 1; i >= 0; --i) {
+					long s = model.get(i).getScore();
+					if (s >= min && s <= max) {
+						model.remove(i);
+						expect++;
+					}
+				}
+				check(zset.removeRangeByScore(min, max) == expect, "removeRangeByScore " + min + " " + max);
+			}
+			else {
+				int size = model.size();
+				long start = random.nextInt(size * 2 + 3) - size - 1;
+				long stop = random.nextInt(size * 2 + 3) - size - 1;
+				long s = start < 0 ? Math.max(0, size + start) : start;
+				long e = stop < 0 ? size + stop : Math.min(stop, size - 1);
+				int expect = s > e || s >= size ? 0 : (int) (e - s + 1);
+				if (expect > 0) {
+					model.subList((int) s, (int) e + 1).clear();
+				}
+				check(zset.removeRangeByRank(start, stop) == expect, "removeRangeByRank " + start + " " + stop + " of " + size);
+			}
+			if (op % 100 == 0) {
+				verify(zset, model);
+			}
+		}
+		verify(zset, model);
+	}
+	
+	private static ZSet<Member, Integer> filled(int n, List<Member> model) {
+		ZSet<Member, Integer> zset = new ZSet<>("removeRange");
+		for (int i = 0; i < n; ++i) {
+			// 两个一组共用一个分值，移除时会留下半个分值桶
+			Member m = new Member(i, i / 2);
+			zset.add(m);
+			model.add(m);
+		}
+		return zset;
+	}
+	
+	/**
+	 * 按分值插入到相同分值元素的最后
+	 */
+	private static void insert(List<Member> model, Member m) {
+		int i = model.size();
+		while (i > 0 && model.get(i - 1).getScore() > m.getScore()) {
+			i--;
+		}
+		model.add(i, m);
+	}
+	
+	private static void verify(ZSet<Member, Integer> zset, List<Member> model) {
+		check(zset.dict.size() == model.size(), "dict size " + zset.dict.size() + " != " + model.size());
+		check(zset.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE).equals(model), "order");
+		for (Member m : model) {
+			check(zset.dict.get(m.id) == m, "dict " + m.id);
+		}
+		for (Map.Entry<Long, List<Member>> entry : zset.zsl.entrySet()) {
+			check(!entry.getValue().isEmpty(), "empty bucket " + entry.getKey());
+		}
+	}
+	
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+	
+	private static class Member extends ZSetEle<Integer> {
+		final int id;
+		
+		Member(int id, long score) {
+			this.id = id;
+			this.score = score;
+		}
+		
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Member && ((Member) obj).id == id;
+		}
+	}
+
+}
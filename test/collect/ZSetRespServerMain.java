@@ -0,0 +1,63 @@
+package com.yiba.core.collect;
+
+import java.io.IOException;
+
+/**
+ * 独立运行ZSetRespServer，用redis-cli或redis-benchmark测试
+ * member为字符串，由main线程代替场景线程循环调用poll。
+ * @author U-Demon
+ */
+public class ZSetRespServerMain {
+	
+	/**
+	 * @param args	[端口]
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 6380;
+		ZSetRespServer<Member, String> server = new ZSetRespServer<>(new ZSetRespCodec<Member, String>() {
+			@Override
+			public String parseKey(String member) {
+				return member;
+			}
+			
+			@Override
+			public Member newElement(String id) {
+				return new Member(id);
+			}
+			
+			@Override
+			public String toMember(Member ele) {
+				return ele.id;
+			}
+		});
+		server.listen(port);
+		System.out.println("listening on " + server.getPort());
+		while (true) {
+			server.poll(100);
+		}
+	}
+	
+	private static class Member extends ZSetEle<String> {
+		final String id;
+		
+		Member(String id) {
+			this.id = id;
+		}
+		
+		@Override
+		public String getKey() {
+			return id;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Member && ((Member) obj).id.equals(id);
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package com.yiba.core.collect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ZSet快照的检查
+ * main线程作为写线程持续随机修改，定期取快照并记下当时的内容；读线程不加锁地反复遍历最近的快照，
+ * 检查顺序、分值、个数、排名在之后的修改中都不变。写线程也检查较早的快照。
+ * 没有测试框架，直接运行main，失败时抛出AssertionError。
+ * @author U-Demon
+ */
+public class ZSetSnapshotTest {
+	
+	private static final int OPS = 300000;
+	private static final int KEYS = 2000;
+	private static final int SCORES = 300;
+	
+	/** 每隔多少次修改取一次快照 */
+	private static final int SNAPSHOT_INTERVAL = 1000;
+	
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(27);
+		ZSet<Member, Integer> zset = new ZSet<>("snapshot");
+		for (int i = 0; i < KEYS / 2; ++i) {
+			zset.add(new Member(i, random.nextInt(SCORES)));
+		}
+		zset.enableSnapshot();
+		
+		AtomicReference<Frozen> latest = new AtomicReference<>(new Frozen(zset));
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		long[] verified = new long[1];
+		Thread reader = new Thread(() -> {
+			try {
+				Frozen f;
+				while ((f = latest.get()) != null) {
+					f.verify();
+					verified[0]++;
+				}
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		}, "snapshot-reader");
+		reader.start();
+		
+		List<Frozen> old = new ArrayList<>();
+		for (int op = 1; op <= OPS && failure.get() == null; ++op) {
+			int id = random.nextInt(KEYS);
+			long score = random.nextInt(SCORES);
+			Member m = zset.dict.get(id);
+			switch (random.nextInt(6)) {
+			case 0:
+			case 1:
+				zset.add(score, m != null ? m : new Member(id, score), false, false, false);
+				break;
+			case 2:
+				if (m != null) {
+					zset.add(score % 5, m, false, true, true);
+				}
+				break;
+			case 3:
+				zset.remove(id);
+				break;
+			case 4:
+				if (random.nextInt(100) == 0) {
+					zset.removeRangeByScore(score, score + 2);
+				}
+				break;
+			default:
+				if (random.nextInt(100) == 0) {
+					zset.removeRangeByRank(score, score + 3);
+				}
+				break;
+			}
+			if (op % SNAPSHOT_INTERVAL == 0) {
+				Frozen f = new Frozen(zset);
+				latest.set(f);
+				if (old.size() < 20) {
+					old.add(f);
+				}
+			}
+		}
+		latest.set(null);
+		reader.join();
+		if (failure.get() != null) {
+			throw new AssertionError("reader failed", failure.get());
+		}
+		// 所有修改之后，较早的快照仍是当时的内容
+		for (Frozen f : old) {
+			f.verify();
+		}
+		check(verified[0] > 0, "reader verified nothing");
+		System.out.println("ZSetSnapshotTest ok, reader checks=" + verified[0]);
+	}
+	
+	/**
+	 * 一个快照和取快照时ZSet的内容
+	 */
+	private static class Frozen {
+		final ZSetSnapshot<Member, Integer> snapshot;
+		final List<Member> members;
+		final long[] scores;
+		
+		Frozen(ZSet<Member, Integer> zset) {
+			this.snapshot = zset.snapshot();
+			this.members = zset.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE);
+			this.scores = new long[members.size()];
+			for (int i = 0; i < scores.length; ++i) {
+				scores[i] = members.get(i).getScore();
+			}
+		}
+		
+		void verify() {
+			check(snapshot.size() == members.size(), "size " + snapshot.size() + " != " + members.size());
+			check(snapshot.rangeByScore(Long.MIN_VALUE, Long.MAX_VALUE).equals(members), "range order");
+			List<Member> streamed = new ArrayList<>();
+			snapshot.streamByScore(Long.MIN_VALUE, Long.MAX_VALUE).forEach(streamed::add);
+			check(streamed.equals(members), "stream order");
+			for (int i = 0; i < members.size(); i += 7) {
+				Member m = members.get(i);
+				Long s = snapshot.score(m.id);
+				check(s != null && s == scores[i], "score of " + m.id);
+				check(snapshot.rank(m.id) == i && snapshot.getByRank(i) == m, "rank of " + m.id);
+			}
+			if (!members.isEmpty()) {
+				long s = scores[scores.length / 2];
+				int n = 0;
+				for (long v : scores) {
+					if (v == s) {
+						n++;
+					}
+				}
+				check(snapshot.rangeByScore(s, s).size() == n, "bucket " + s);
+			}
+		}
+	}
+	
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+	
+	private static class Member extends ZSetEle<Integer> {
+		final int id;
+		
+		Member(int id, long score) {
+			this.id = id;
+			this.score = score;
+		}
+		
+		@Override
+		public Integer getKey() {
+			return id;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Member && ((Member) obj).id == id;
+		}
+	}
+
+}